@@ -1,6 +1,68 @@
+import com.sun.management.ThreadMXBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 class Student {
     private int studentId;
@@ -29,6 +91,22 @@ class Student {
         this.gpa = 0.0;
     }
     
+    public Student(Student other) {
+        this.studentId = other.studentId;
+        this.firstName = other.firstName;
+        this.lastName = other.lastName;
+        this.email = other.email;
+        this.phoneNumber = other.phoneNumber;
+        this.department = other.department;
+        this.enrollmentDate = other.enrollmentDate;
+        this.gpa = other.gpa;
+    }
+    
+    // Stores hand out copies, so callers can edit what they get back
+    static Student copyOf(Student student) {
+        return student == null ? null : new Student(student);
+    }
+    
     public int getStudentId() { return studentId; }
     public void setStudentId(int studentId) { this.studentId = studentId; }
     
@@ -53,202 +131,8221 @@ class Student {
     public double getGpa() { return gpa; }
     public void setGpa(double gpa) { this.gpa = gpa; }
     
-    public String getFullName() {
-        return firstName + " " + lastName;
+    public String getFullName() {
+        return firstName + " " + lastName;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Student{ID=%d, Name='%s %s', Email='%s', Phone='%s', Dept='%s', GPA=%.2f, Enrolled=%s}",
+                studentId, firstName, lastName, email, phoneNumber, department, gpa, enrollmentDate);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        Student student = (Student) obj;
+        return studentId == student.studentId;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(studentId);
+    }
+}
+
+/**
+ * Column-oriented snapshot file, read through a memory mapping. Numeric
+ * fields are stored as flat arrays (IDs, GPAs, enrollment epoch days),
+ * departments as codes into a dictionary, and the remaining strings as a
+ * length column followed by their UTF-8 bytes.
+ *
+ * Opening only maps the file and decodes the department dictionary; the
+ * numeric columns can be read in place, and Student objects are built
+ * only when forEach() walks the rows. Materialized students share one
+ * String per department and one LocalDate per distinct enrollment day.
+ */
+class ColumnarSnapshot {
+    private static final int MAGIC = 0x53434F4C;
+    private static final int VERSION = 1;
+    private static final int NULL_LENGTH = -1;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final int STRING_COLUMNS = 4;
+    
+    private final MappedByteBuffer buffer;
+    private final long replayFrom;
+    private final int nextId;
+    private final int count;
+    private final String[] departments;
+    private final int idsAt;
+    private final int gpasAt;
+    private final int daysAt;
+    private final int departmentCodesAt;
+    private final int stringsAt;
+    
+    private ColumnarSnapshot(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a columnar student snapshot");
+        }
+        this.replayFrom = buffer.getLong(8);
+        this.nextId = buffer.getInt(16);
+        this.count = buffer.getInt(20);
+        this.departments = new String[buffer.getInt(24)];
+        int position = 28;
+        for (int i = 0; i < departments.length; i++) {
+            int length = buffer.getInt(position);
+            departments[i] = decode(position + 4, length);
+            position += 4 + length;
+        }
+        this.idsAt = position;
+        this.gpasAt = idsAt + 4 * count;
+        this.daysAt = gpasAt + 8 * count;
+        this.departmentCodesAt = daysAt + 8 * count;
+        this.stringsAt = departmentCodesAt + 4 * count;
+    }
+    
+    static ColumnarSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + path);
+            }
+            return new ColumnarSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    static void write(Path path, Collection<Student> source, long replayFrom, int nextId) throws IOException {
+        // Columns take several passes, so fix the row set first
+        List<Student> students = new ArrayList<>(source);
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (Student student : students) {
+            if (student.getDepartment() != null) {
+                dictionary.putIfAbsent(student.getDepartment(), dictionary.size());
+            }
+        }
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(replayFrom);
+            out.writeInt(nextId);
+            out.writeInt(students.size());
+            out.writeInt(dictionary.size());
+            for (String department : dictionary.keySet()) {
+                byte[] bytes = department.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            
+            for (Student student : students) {
+                out.writeInt(student.getStudentId());
+            }
+            for (Student student : students) {
+                out.writeDouble(student.getGpa());
+            }
+            for (Student student : students) {
+                LocalDate date = student.getEnrollmentDate();
+                out.writeLong(date == null ? NO_DATE : date.toEpochDay());
+            }
+            for (Student student : students) {
+                String department = student.getDepartment();
+                out.writeInt(department == null ? NULL_LENGTH : dictionary.get(department));
+            }
+            
+            for (int column = 0; column < STRING_COLUMNS; column++) {
+                byte[][] values = new byte[students.size()][];
+                for (int i = 0; i < values.length; i++) {
+                    String value = stringColumn(students.get(i), column);
+                    values[i] = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(values[i] == null ? NULL_LENGTH : values[i].length);
+                }
+                for (byte[] value : values) {
+                    if (value != null) {
+                        out.write(value);
+                    }
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+    }
+    
+    long replayFrom() { return replayFrom; }
+    int nextId() { return nextId; }
+    int size() { return count; }
+    
+    int studentId(int row) { return buffer.getInt(idsAt + 4 * row); }
+    double gpa(int row) { return buffer.getDouble(gpasAt + 8 * row); }
+    long enrollmentDay(int row) { return buffer.getLong(daysAt + 8 * row); }
+    
+    String department(int row) {
+        int code = buffer.getInt(departmentCodesAt + 4 * row);
+        return code == NULL_LENGTH ? null : departments[code];
+    }
+    
+    /**
+     * Materializes every row in file order. The string columns are only
+     * walkable sequentially, so this is the one way to get full students.
+     */
+    void forEach(Consumer<Student> action) {
+        // Each string column is a length array followed by its bytes
+        int[] lengthsAt = new int[STRING_COLUMNS];
+        int[] cursors = new int[STRING_COLUMNS];
+        int position = stringsAt;
+        for (int column = 0; column < STRING_COLUMNS; column++) {
+            lengthsAt[column] = position;
+            cursors[column] = position + 4 * count;
+            position = cursors[column];
+            for (int i = 0; i < count; i++) {
+                position += Math.max(0, buffer.getInt(lengthsAt[column] + 4 * i));
+            }
+        }
+        
+        Map<Long, LocalDate> dates = new HashMap<>();
+        String[] values = new String[STRING_COLUMNS];
+        for (int row = 0; row < count; row++) {
+            for (int column = 0; column < STRING_COLUMNS; column++) {
+                int length = buffer.getInt(lengthsAt[column] + 4 * row);
+                if (length == NULL_LENGTH) {
+                    values[column] = null;
+                } else {
+                    values[column] = decode(cursors[column], length);
+                    cursors[column] += length;
+                }
+            }
+            Student student = new Student(studentId(row), values[0], values[1], values[2], values[3],
+                    department(row));
+            long day = enrollmentDay(row);
+            student.setEnrollmentDate(day == NO_DATE ? null : dates.computeIfAbsent(day, LocalDate::ofEpochDay));
+            student.setGpa(gpa(row));
+            action.accept(student);
+        }
+    }
+    
+    private String decode(int position, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static String stringColumn(Student student, int column) {
+        switch (column) {
+            case 0: return student.getFirstName();
+            case 1: return student.getLastName();
+            case 2: return student.getEmail();
+            default: return student.getPhoneNumber();
+        }
+    }
+}
+
+/**
+ * Durable backing for StudentRepository: an append-only binary log of
+ * student puts and deletes, split into segments, plus a compacted
+ * ColumnarSnapshot that older segments are folded into. Appends are buffered and made
+ * durable by sync(), which group-commits: concurrent writers waiting on
+ * the same batch share a single fsync.
+ *
+ * Log records are [length][crc32][op][id][student fields]; a torn or
+ * corrupt tail left by a crash is detected by the checksum and cut off
+ * during recovery. Both op kinds carry full state, so replaying a segment
+ * over a snapshot that already reflects part of it is harmless.
+ */
+class StudentLog implements Closeable {
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long COMPACTION_THRESHOLD = 64L * 1024 * 1024;
+    private static final String SNAPSHOT_FILE = "students.snapshot";
+    
+    static class Recovered {
+        final Map<Integer, Student> students;
+        final int nextId;
+        
+        Recovered(Map<Integer, Student> students, int nextId) {
+            this.students = students;
+            this.nextId = nextId;
+        }
+    }
+    
+    private final Path directory;
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private DataOutputStream out;
+    private long segment;
+    private long segmentBytes;
+    private long appendedSeq;
+    private volatile long durableSeq;
+    
+    StudentLog(Path directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * Loads the snapshot and replays the log segments after it, then opens
+     * a fresh segment for appending. Must be called once, before any append.
+     */
+    Recovered recover() throws IOException {
+        Files.createDirectories(directory);
+        Map<Integer, Student> students = new HashMap<>();
+        long firstSegment = 0;
+        int nextId = 1;
+        
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            ColumnarSnapshot columns = ColumnarSnapshot.open(snapshot);
+            firstSegment = columns.replayFrom();
+            nextId = columns.nextId();
+            columns.forEach(student -> students.put(student.getStudentId(), student));
+        }
+        
+        long lastSegment = firstSegment - 1;
+        for (long n : listSegments()) {
+            if (n < firstSegment) {
+                continue;
+            }
+            replaySegment(segmentPath(n), students);
+            lastSegment = n;
+        }
+        for (Integer id : students.keySet()) {
+            nextId = Math.max(nextId, id + 1);
+        }
+        
+        openSegment(lastSegment + 1);
+        return new Recovered(students, nextId);
+    }
+    
+    long appendPut(Student student) {
+        synchronized (appendLock) {
+            try {
+                recordBytes.reset();
+                record.writeByte(OP_PUT);
+                writeStudent(record, student);
+                return writeRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    long appendDelete(int id) {
+        synchronized (appendLock) {
+            try {
+                recordBytes.reset();
+                record.writeByte(OP_DELETE);
+                record.writeInt(id);
+                return writeRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    // Batch forms take the append lock once for the whole list and return
+    // the sequence number of the last record
+    long appendPuts(List<Student> students) {
+        synchronized (appendLock) {
+            long seq = appendedSeq;
+            for (Student student : students) {
+                seq = appendPut(student);
+            }
+            return seq;
+        }
+    }
+    
+    long appendDeletes(List<Integer> ids) {
+        synchronized (appendLock) {
+            long seq = appendedSeq;
+            for (int id : ids) {
+                seq = appendDelete(id);
+            }
+            return seq;
+        }
+    }
+    
+    private long writeRecord() throws IOException {
+        crc.reset();
+        crc.update(recordBytes.toByteArray(), 0, recordBytes.size());
+        out.writeInt(recordBytes.size());
+        out.writeInt((int) crc.getValue());
+        recordBytes.writeTo(out);
+        segmentBytes += 8 + recordBytes.size();
+        return ++appendedSeq;
+    }
+    
+    /**
+     * Blocks until the record with the given sequence number is on disk.
+     * Whoever takes the sync lock flushes and fsyncs everything appended
+     * so far; writers queued behind it usually find their record covered.
+     */
+    void sync(long seq) {
+        if (durableSeq >= seq) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durableSeq >= seq) {
+                return;
+            }
+            try {
+                long target;
+                FileChannel current;
+                synchronized (appendLock) {
+                    out.flush();
+                    target = appendedSeq;
+                    current = channel;
+                }
+                current.force(false);
+                durableSeq = target;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    boolean shouldCompact() {
+        synchronized (appendLock) {
+            return segmentBytes > COMPACTION_THRESHOLD;
+        }
+    }
+    
+    /**
+     * Syncs and closes the current segment and starts a new one, whose
+     * number it returns. A snapshot holding every record before that
+     * segment can then be written with {@link #checkpoint}.
+     */
+    long roll() throws IOException {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                out.flush();
+                channel.force(false);
+                durableSeq = appendedSeq;
+                out.close();
+                openSegment(segment + 1);
+                return segment;
+            }
+        }
+    }
+    
+    /**
+     * Writes the students to a new snapshot that recovery replays from
+     * segment {@code replayFrom} onwards, then deletes the segments it
+     * supersedes. The students must reflect every record appended before
+     * that segment. Writers keep appending while the snapshot is written.
+     */
+    void checkpoint(Collection<Student> students, long replayFrom, int nextId) throws IOException {
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        ColumnarSnapshot.write(temp, students, replayFrom, nextId);
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        for (long n : listSegments()) {
+            if (n < replayFrom) {
+                Files.deleteIfExists(segmentPath(n));
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                out.flush();
+                channel.force(false);
+                durableSeq = appendedSeq;
+                out.close();
+            }
+        }
+    }
+    
+    private void openSegment(long n) throws IOException {
+        segment = n;
+        channel = FileChannel.open(segmentPath(n), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = channel.size();
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    }
+    
+    private void replaySegment(Path path, Map<Integer, Student> students) throws IOException {
+        long validBytes = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+            byte[] payload = new byte[256];
+            CRC32 check = new CRC32();
+            while (true) {
+                int length;
+                int expectedCrc;
+                try {
+                    length = in.readInt();
+                    expectedCrc = in.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                check.reset();
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != expectedCrc) {
+                    break;
+                }
+                
+                DataInputStream entry = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+                byte op = entry.readByte();
+                if (op == OP_PUT) {
+                    Student student = readStudent(entry);
+                    students.put(student.getStudentId(), student);
+                } else if (op == OP_DELETE) {
+                    students.remove(entry.readInt());
+                }
+                validBytes += 8 + length;
+            }
+        }
+        
+        // Drop a torn tail so later appends don't land behind garbage
+        if (Files.size(path) > validBytes) {
+            try (FileChannel truncate = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                truncate.truncate(validBytes);
+            }
+        }
+    }
+    
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "students-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring("students-".length(), name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    private Path segmentPath(long n) {
+        return directory.resolve(String.format("students-%08d.log", n));
+    }
+    
+    static void writeStudent(DataOutputStream out, Student student) throws IOException {
+        out.writeInt(student.getStudentId());
+        writeNullable(out, student.getFirstName());
+        writeNullable(out, student.getLastName());
+        writeNullable(out, student.getEmail());
+        writeNullable(out, student.getPhoneNumber());
+        writeNullable(out, student.getDepartment());
+        out.writeLong(student.getEnrollmentDate() == null ? Long.MIN_VALUE : student.getEnrollmentDate().toEpochDay());
+        out.writeDouble(student.getGpa());
+    }
+    
+    static Student readStudent(DataInputStream in) throws IOException {
+        Student student = new Student(in.readInt(), readNullable(in), readNullable(in), readNullable(in),
+                readNullable(in), readNullable(in));
+        long epochDay = in.readLong();
+        student.setEnrollmentDate(epochDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(epochDay));
+        student.setGpa(in.readDouble());
+        return student;
+    }
+    
+    static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+    
+    static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
+
+/**
+ * Per-student outcome of a batch write, keyed by student ID.
+ */
+class BatchResult {
+    enum Outcome { CREATED, UPDATED, DELETED, NOT_FOUND, SKIPPED, INVALID, DUPLICATE }
+    
+    private final Map<Integer, Outcome> outcomes = new LinkedHashMap<>();
+    
+    void record(int id, Outcome outcome) {
+        outcomes.put(id, outcome);
+    }
+    
+    public Map<Integer, Outcome> getOutcomes() {
+        return Collections.unmodifiableMap(outcomes);
+    }
+    
+    public int count(Outcome outcome) {
+        int count = 0;
+        for (Outcome value : outcomes.values()) {
+            if (value == outcome) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        for (Outcome outcome : Outcome.values()) {
+            int count = count(outcome);
+            if (count > 0) {
+                summary.append(summary.length() == 0 ? "" : ", ").append(outcome).append('=').append(count);
+            }
+        }
+        return "BatchResult{" + summary + "}";
+    }
+}
+
+/**
+ * Ordered change-data-capture feed of StudentRepository writes. Events go
+ * into a fixed-size ring indexed by sequence number: publishing claims a
+ * sequence with one atomic increment and one slot store, and never
+ * blocks, so writers are not held up by slow consumers. Consumers pull
+ * from a Subscription at their own pace and in batches no bigger than
+ * they ask for; nothing is pushed at them. A subscriber that falls more
+ * than the ring's capacity behind gets an IllegalStateException and must
+ * resync (e.g. page through the store) and resubscribe at
+ * {@link #nextSequence()}.
+ *
+ * Events are published as soon as a write is applied in memory, before
+ * it is synced to the log, under the student's lock, so per student the
+ * sequence order is the order of the writes. Sequences restart at 0 each
+ * time the repository is opened.
+ */
+class StudentChangeFeed {
+    enum Type { ADDED, UPDATED, GPA_CHANGED, DELETED }
+    
+    private static final long WAIT_NANOS = 100_000;
+    
+    static class ChangeEvent {
+        final long sequence;
+        final Type type;
+        final int studentId;
+        // Null for ADDED and DELETED respectively
+        final Student before;
+        final Student after;
+        final long timestampMillis;
+        
+        ChangeEvent(long sequence, Type type, int studentId, Student before, Student after, long timestampMillis) {
+            this.sequence = sequence;
+            this.type = type;
+            this.studentId = studentId;
+            this.before = before;
+            this.after = after;
+            this.timestampMillis = timestampMillis;
+        }
+        
+        @Override
+        public String toString() {
+            return "ChangeEvent{#" + sequence + " " + type + " student " + studentId + "}";
+        }
+    }
+    
+    /**
+     * A consumer's position in the feed. Not thread-safe: each consumer
+     * thread should hold its own.
+     */
+    class Subscription {
+        private long position;
+        
+        private Subscription(long position) {
+            this.position = position;
+        }
+        
+        /** Sequence of the next event this subscription will return; save it to resume later. */
+        long position() {
+            return position;
+        }
+        
+        /** Up to {@code maxEvents} events already published, without waiting. */
+        List<ChangeEvent> poll(int maxEvents) {
+            List<ChangeEvent> events = new ArrayList<>(Math.min(maxEvents, 256));
+            while (events.size() < maxEvents) {
+                ChangeEvent event = ring.get(slot(position));
+                if (event == null || event.sequence < position) {
+                    // Not published yet: stop here rather than skip it
+                    break;
+                }
+                if (event.sequence > position) {
+                    throw new IllegalStateException("Change feed overrun: events before sequence "
+                            + oldestSequence() + " are gone, subscriber was at " + position);
+                }
+                // Copies: the records are the store's own
+                events.add(new ChangeEvent(event.sequence, event.type, event.studentId,
+                        Student.copyOf(event.before), Student.copyOf(event.after), event.timestampMillis));
+                position++;
+            }
+            return events;
+        }
+        
+        /** Like {@link #poll(int)}, but waits up to the timeout for the first event. */
+        List<ChangeEvent> poll(int maxEvents, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                List<ChangeEvent> events = poll(maxEvents);
+                if (!events.isEmpty() || System.nanoTime() - deadline >= 0) {
+                    return events;
+                }
+                LockSupport.parkNanos(WAIT_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+    
+    private final AtomicReferenceArray<ChangeEvent> ring;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+    
+    StudentChangeFeed(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+    
+    /** Records the replacement of {@code before} by {@code after}; either may be null. */
+    long publish(Student before, Student after) {
+        Student student = after != null ? after : before;
+        long sequence = nextSequence.getAndIncrement();
+        ring.set(slot(sequence), new ChangeEvent(sequence, classify(before, after), student.getStudentId(),
+                before, after, System.currentTimeMillis()));
+        return sequence;
+    }
+    
+    /** Sequence the next published event will get. */
+    long nextSequence() {
+        return nextSequence.get();
+    }
+    
+    /** Oldest sequence still held in the ring. */
+    long oldestSequence() {
+        return Math.max(0, nextSequence.get() - ring.length());
+    }
+    
+    /** Subscribes from {@code fromSequence}: 0 for everything retained, nextSequence() for new events only. */
+    Subscription subscribe(long fromSequence) {
+        if (fromSequence < oldestSequence() || fromSequence > nextSequence()) {
+            throw new IllegalArgumentException("Sequence " + fromSequence + " is outside the retained range "
+                    + oldestSequence() + "-" + nextSequence());
+        }
+        return new Subscription(fromSequence);
+    }
+    
+    private int slot(long sequence) {
+        return (int) (sequence & mask);
+    }
+    
+    private static Type classify(Student before, Student after) {
+        if (before == null) {
+            return Type.ADDED;
+        }
+        if (after == null) {
+            return Type.DELETED;
+        }
+        boolean onlyGpa = before.getGpa() != after.getGpa()
+                && Objects.equals(before.getFirstName(), after.getFirstName())
+                && Objects.equals(before.getLastName(), after.getLastName())
+                && Objects.equals(before.getEmail(), after.getEmail())
+                && Objects.equals(before.getPhoneNumber(), after.getPhoneNumber())
+                && Objects.equals(before.getDepartment(), after.getDepartment())
+                && Objects.equals(before.getEnrollmentDate(), after.getEnrollmentDate());
+        return onlyGpa ? Type.GPA_CHANGED : Type.UPDATED;
+    }
+}
+
+/**
+ * Storage contract behind StudentService. Lookups by department are
+ * case-insensitive, name search is a case-insensitive substring match,
+ * and listings come back in ID order. Emails are unique, ignoring case:
+ * single-student writes that would duplicate one throw
+ * IllegalArgumentException.
+ */
+interface StudentStore extends Closeable {
+    Student addStudent(Student student);
+    
+    /** Reserves {@code count} consecutive IDs and returns the first. */
+    int reserveIds(int count);
+    
+    /**
+     * Adds students that already carry IDs, as one batch. Students whose
+     * email another student already holds come back as DUPLICATE.
+     */
+    BatchResult addStudents(List<Student> students);
+    
+    List<Student> getAllStudents();
+    
+    /** Up to {@code limit} students with IDs above {@code afterId}, in ID order. */
+    List<Student> getStudentsAfter(int afterId, int limit);
+    
+    Optional<Student> getStudentById(int id);
+    
+    /** Case-insensitive exact match on email, which is unique per student. */
+    Optional<Student> getStudentByEmail(String email);
+    
+    List<Student> getStudentsByDepartment(String department);
+    
+    int getDepartmentSize(String department);
+    
+    double getDepartmentAverageGpa(String department);
+    
+    double getAverageGpa();
+    
+    double getMinGpa();
+    
+    double getMaxGpa();
+    
+    /** Students with min <= GPA <= max, lowest GPA first, at most {@code limit}. */
+    List<Student> getStudentsByGpaRange(double min, double max, int limit);
+    
+    /** The {@code n} highest GPAs, highest first. */
+    List<Student> getTopStudentsByGpa(int n);
+    
+    /** The {@code n} lowest GPAs, lowest first. */
+    List<Student> getBottomStudentsByGpa(int n);
+    
+    /** Students enrolled on or between the two dates, earliest first, at most {@code limit}. */
+    List<Student> getStudentsEnrolledBetween(LocalDate from, LocalDate to, int limit);
+    
+    List<Student> searchStudentsByName(String nameQuery);
+    
+    List<Student> searchStudentsByName(String nameQuery, int offset, int limit);
+    
+    boolean updateStudent(int id, Student updatedStudent);
+    
+    /** Atomically replaces a student with the modifier's result; false if absent. */
+    boolean updateStudent(int id, UnaryOperator<Student> modifier);
+    
+    boolean deleteStudent(int id);
+    
+    /**
+     * Applies {@code modifier} to each listed student in one pass. The
+     * modifier may return null to leave a student unchanged (SKIPPED).
+     */
+    BatchResult updateStudents(Collection<Integer> ids, UnaryOperator<Student> modifier);
+    
+    BatchResult deleteStudents(Collection<Integer> ids);
+    
+    int getTotalStudents();
+    
+    boolean studentExists(int id);
+    
+    /** Distinct department names, sorted case-insensitively. */
+    List<String> getAllDepartments();
+}
+
+/**
+ * In-memory student store, safe for concurrent use. Writes to the same ID
+ * are serialized by a striped lock; writes to different IDs proceed in
+ * parallel and only meet inside the concurrent index maps. When opened on
+ * a data directory, every write is also logged through StudentLog and is
+ * durable once the call returns.
+ *
+ * Records are multi-versioned: each commit gets a version number and
+ * links the new record in front of the ones it replaces. {@link #snapshot()}
+ * pins the current version in O(1); the snapshot then reads the newest
+ * record at or before it while writers carry on, and whole-store reads
+ * (getAllStudents, getAverageGpa) go through one. Old versions are
+ * dropped as soon as no open snapshot can see them.
+ */
+class StudentRepository implements StudentStore {
+    private static final int LOCK_STRIPES = 64;
+    private static final int CHANGE_FEED_CAPACITY = 1 << 16;
+    
+    // Members of one department plus its running GPA total. Only changed
+    // inside departmentIndex.compute(), which serializes per department.
+    private static class DepartmentEntry {
+        final String name;
+        final Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        volatile double gpaSum;
+        
+        DepartmentEntry(String name) {
+            this.name = name;
+        }
+    }
+    
+    // Sort key for the ordered indexes; the ID breaks ties between equal values
+    private static class RankKey implements Comparable<RankKey> {
+        final double value;
+        final int id;
+        
+        RankKey(double value, int id) {
+            this.value = value;
+            this.id = id;
+        }
+        
+        @Override
+        public int compareTo(RankKey other) {
+            int byValue = Double.compare(value, other.value);
+            return byValue != 0 ? byValue : Integer.compare(id, other.id);
+        }
+    }
+    
+    // One committed state of a student; value is null for a deletion.
+    // Older versions stay linked only while an open snapshot may read them.
+    private static class Version {
+        final Student value;
+        final long version;
+        volatile Version older;
+        
+        Version(Student value, long version, Version older) {
+            this.value = value;
+            this.version = version;
+            this.older = older;
+        }
+    }
+    
+    // Store-wide count and GPA total, swapped as one object so readers
+    // never see one updated without the other
+    private static class Totals {
+        final int students;
+        final double gpaSum;
+        
+        Totals(int students, double gpaSum) {
+            this.students = students;
+            this.gpaSum = gpaSum;
+        }
+    }
+    
+    /**
+     * Point-in-time view of the repository. Opening one is O(1) and never
+     * blocks writers; reads see exactly the commits up to its version.
+     * Close it promptly: versions it can see are kept until then.
+     */
+    public final class Snapshot implements Closeable {
+        private final long version;
+        private final Totals totals;
+        private boolean closed;
+        
+        private Snapshot(long version, Totals totals) {
+            this.version = version;
+            this.totals = totals;
+        }
+        
+        public long version() {
+            return version;
+        }
+        
+        public Optional<Student> getStudentById(int id) {
+            return Optional.ofNullable(Student.copyOf(visible(studentDatabase.get(id))));
+        }
+        
+        public List<Student> getAllStudents() {
+            List<Student> students = records();
+            students.replaceAll(Student::copyOf);
+            return students;
+        }
+        
+        // The stored records themselves, for the checkpoint to serialize
+        private List<Student> records() {
+            List<Student> students = new ArrayList<>(totals.students);
+            for (Version head : studentDatabase.values()) {
+                Student student = visible(head);
+                if (student != null) {
+                    students.add(student);
+                }
+            }
+            return students;
+        }
+        
+        public int getTotalStudents() {
+            return totals.students;
+        }
+        
+        public double getAverageGpa() {
+            return totals.students == 0 ? 0.0 : totals.gpaSum / totals.students;
+        }
+        
+        private Student visible(Version node) {
+            while (node != null && node.version > version) {
+                node = node.older;
+            }
+            return node == null ? null : node.value;
+        }
+        
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                releaseSnapshot(version);
+            }
+        }
+    }
+    
+    // Newest committed version per ID, chained to older ones
+    private Map<Integer, Version> studentDatabase;
+    // Guarded by commitLock, which orders commits and snapshot opens
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private volatile long committedVersion;
+    private volatile Totals totals = new Totals(0, 0.0);
+    // Open snapshot version -> how many are open at it
+    private final NavigableMap<Long, Integer> openSnapshots = new TreeMap<>();
+    // IDs whose version chains were kept longer for an open snapshot
+    private final Set<Integer> retainedIds = new HashSet<>();
+    // Secondary index: lower-cased department -> its members and aggregates,
+    // keeping the name as first entered for display
+    private Map<String, DepartmentEntry> departmentIndex;
+    // Ordered indexes by GPA and by enrollment epoch day
+    private NavigableSet<RankKey> gpaIndex;
+    private NavigableSet<RankKey> enrollmentIndex;
+    // Lower-cased full name per student, in ID order. Used for search
+    // verification and as the ordered key set behind paged listing.
+    private NavigableMap<Integer, String> searchNames;
+    // Inverted index: name trigram -> IDs of students whose full name contains it
+    private Map<String, NavigableSet<Integer>> trigramIndex;
+    // Unique index: normalized email -> owning ID. putIfAbsent() is the
+    // uniqueness check, so two writers under different ID locks can't both win.
+    private Map<String, Integer> emailIndex;
+    private final ReentrantLock[] locks;
+    private final AtomicInteger nextId;
+    private final StudentLog log;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final Object checkpointLock = new Object();
+    // Every applied write, published while its ID lock is still held
+    private final StudentChangeFeed changeFeed = new StudentChangeFeed(CHANGE_FEED_CAPACITY);
+    
+    public StudentRepository() {
+        this((StudentLog) null);
+        initializeSampleData();
+    }
+    
+    /**
+     * Opens a repository persisted under the given directory, recovering
+     * whatever was stored there. A brand new directory gets the sample data.
+     */
+    public StudentRepository(Path dataDirectory) throws IOException {
+        this(dataDirectory, true);
+    }
+    
+    StudentRepository(Path dataDirectory, boolean sampleDataIfEmpty) throws IOException {
+        this(new StudentLog(dataDirectory));
+        StudentLog.Recovered recovered = log.recover();
+        nextId.set(recovered.nextId);
+        double gpaSum = 0.0;
+        for (Student student : recovered.students.values()) {
+            studentDatabase.put(student.getStudentId(), new Version(student, 0, null));
+            gpaSum += student.getGpa();
+            indexStudent(student);
+            // Data written before emails were unique keeps its first owner
+            String email = emailKey(student.getEmail());
+            if (email != null) {
+                emailIndex.putIfAbsent(email, student.getStudentId());
+            }
+        }
+        totals = new Totals(studentDatabase.size(), gpaSum);
+        if (studentDatabase.isEmpty() && sampleDataIfEmpty) {
+            initializeSampleData();
+        }
+    }
+    
+    /** An in-memory repository without the sample data. */
+    static StudentRepository empty() {
+        return new StudentRepository((StudentLog) null);
+    }
+    
+    private StudentRepository(StudentLog log) {
+        this.log = log;
+        this.studentDatabase = new ConcurrentHashMap<>();
+        this.departmentIndex = new ConcurrentHashMap<>();
+        this.gpaIndex = new ConcurrentSkipListSet<>();
+        this.enrollmentIndex = new ConcurrentSkipListSet<>();
+        this.searchNames = new ConcurrentSkipListMap<>();
+        this.trigramIndex = new ConcurrentHashMap<>();
+        this.emailIndex = new ConcurrentHashMap<>();
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.nextId = new AtomicInteger(1);
+    }
+    
+    private void initializeSampleData() {
+        for (Student student : sampleStudents()) {
+            addStudent(student);
+        }
+    }
+    
+    /** The students a brand new store starts with, without IDs. */
+    static List<Student> sampleStudents() {
+        return Arrays.asList(
+                new Student(0, "Alice", "Johnson", "alice.j@email.com", "555-0101", "Computer Science"),
+                new Student(0, "Bob", "Smith", "bob.smith@email.com", "555-0102", "Mathematics"),
+                new Student(0, "Carol", "Williams", "carol.w@email.com", "555-0103", "Physics"));
+    }
+    
+    private int generateId() {
+        return nextId.getAndIncrement();
+    }
+    
+    private ReentrantLock lockFor(int id) {
+        return locks[id & (LOCK_STRIPES - 1)];
+    }
+    
+    @Override
+    public Student addStudent(Student student) {
+        if (student.getStudentId() <= 0) {
+            student.setStudentId(generateId());
+        } else {
+            // Keep generated IDs clear of ones assigned by the caller
+            nextId.accumulateAndGet(student.getStudentId() + 1, Math::max);
+        }
+        // The caller keeps its object; the store keeps a copy no one else can edit
+        Student stored = new Student(student);
+        ReentrantLock lock = lockFor(stored.getStudentId());
+        long seq = 0;
+        lock.lock();
+        try {
+            Student previous = current(stored.getStudentId());
+            if (!claimEmail(stored)) {
+                throw new IllegalArgumentException("Email already registered: " + stored.getEmail());
+            }
+            if (log != null) {
+                try {
+                    seq = log.appendPut(stored);
+                } catch (RuntimeException e) {
+                    releaseEmail(stored, previous);
+                    throw e;
+                }
+            }
+            commit(stored.getStudentId(), stored);
+            if (previous != null) {
+                unindexStudent(previous);
+                releaseEmail(previous, stored);
+            }
+            indexStudent(stored);
+            changeFeed.publish(previous, stored);
+        } finally {
+            lock.unlock();
+        }
+        afterWrite(seq);
+        return student;
+    }
+    
+    /**
+     * Reserves a contiguous block of IDs and returns the first, so bulk
+     * loaders can number a whole batch with one atomic step.
+     */
+    @Override
+    public int reserveIds(int count) {
+        return nextId.getAndAdd(count);
+    }
+    
+    /**
+     * Adds students that already carry their IDs. Each record is logged
+     * and indexed under its own ID lock, but the batch waits for a single
+     * log sync at the end.
+     */
+    @Override
+    public BatchResult addStudents(List<Student> students) {
+        BatchResult result = new BatchResult();
+        long seq = 0;
+        for (Student added : students) {
+            nextId.accumulateAndGet(added.getStudentId() + 1, Math::max);
+            Student student = new Student(added);
+            ReentrantLock lock = lockFor(student.getStudentId());
+            lock.lock();
+            try {
+                Student previous = current(student.getStudentId());
+                if (!claimEmail(student)) {
+                    result.record(student.getStudentId(), BatchResult.Outcome.DUPLICATE);
+                    continue;
+                }
+                if (log != null) {
+                    try {
+                        seq = log.appendPut(student);
+                    } catch (RuntimeException e) {
+                        releaseEmail(student, previous);
+                        throw e;
+                    }
+                }
+                commit(student.getStudentId(), student);
+                if (previous != null) {
+                    unindexStudent(previous);
+                    releaseEmail(previous, student);
+                }
+                indexStudent(student);
+                changeFeed.publish(previous, student);
+                result.record(student.getStudentId(), BatchResult.Outcome.CREATED);
+            } finally {
+                lock.unlock();
+            }
+        }
+        afterWrite(seq);
+        return result;
+    }
+    
+    // A consistent listing: no student appears twice or half-updated
+    @Override
+    public List<Student> getAllStudents() {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.getAllStudents();
+        }
+    }
+    
+    /**
+     * Keyset pagination in ID order: up to {@code limit} students whose
+     * IDs are greater than {@code afterId}. Pass 0 for the first page and
+     * the last ID returned for each next one; inserts and deletes
+     * elsewhere never shift a page the way an offset would.
+     */
+    @Override
+    public List<Student> getStudentsAfter(int afterId, int limit) {
+        List<Student> page = new ArrayList<>(Math.min(limit, 1024));
+        for (Integer id : searchNames.tailMap(afterId, false).keySet()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            Student student = current(id);
+            if (student != null) {
+                page.add(new Student(student));
+            }
+        }
+        return page;
+    }
+    
+    @Override
+    public Optional<Student> getStudentById(int id) {
+        return Optional.ofNullable(Student.copyOf(current(id)));
+    }
+    
+    @Override
+    public Optional<Student> getStudentByEmail(String email) {
+        String key = emailKey(email);
+        Integer id = key == null ? null : emailIndex.get(key);
+        return id == null ? Optional.empty() : Optional.ofNullable(Student.copyOf(current(id)));
+    }
+    
+    @Override
+    public List<Student> getStudentsByDepartment(String department) {
+        DepartmentEntry entry = departmentIndex.get(departmentKey(department));
+        if (entry == null) {
+            return new ArrayList<>();
+        }
+        List<Student> students = new ArrayList<>(entry.ids.size());
+        for (Integer id : entry.ids) {
+            Student student = current(id);
+            if (student != null) {
+                students.add(new Student(student));
+            }
+        }
+        return students;
+    }
+    
+    @Override
+    public int getDepartmentSize(String department) {
+        DepartmentEntry entry = departmentIndex.get(departmentKey(department));
+        return entry == null ? 0 : entry.ids.size();
+    }
+    
+    @Override
+    public double getDepartmentAverageGpa(String department) {
+        DepartmentEntry entry = departmentIndex.get(departmentKey(department));
+        if (entry == null) {
+            return 0.0;
+        }
+        int size = entry.ids.size();
+        return size == 0 ? 0.0 : entry.gpaSum / size;
+    }
+    
+    // Store-wide totals are swapped atomically on commit, so this is O(1)
+    // and never mixes a department's old and new state
+    @Override
+    public double getAverageGpa() {
+        Totals current = totals;
+        return current.students == 0 ? 0.0 : current.gpaSum / current.students;
+    }
+    
+    @Override
+    public double getMinGpa() {
+        try {
+            return gpaIndex.first().value;
+        } catch (NoSuchElementException e) {
+            return 0.0;
+        }
+    }
+    
+    @Override
+    public double getMaxGpa() {
+        try {
+            return gpaIndex.last().value;
+        } catch (NoSuchElementException e) {
+            return 0.0;
+        }
+    }
+    
+    // Range and top-N queries walk the ordered indexes: O(log n + k)
+    @Override
+    public List<Student> getStudentsByGpaRange(double min, double max, int limit) {
+        return collectRanked(gpaIndex.subSet(new RankKey(min, Integer.MIN_VALUE), true,
+                new RankKey(max, Integer.MAX_VALUE), true), limit);
+    }
+    
+    @Override
+    public List<Student> getTopStudentsByGpa(int n) {
+        return collectRanked(gpaIndex.descendingSet(), n);
+    }
+    
+    @Override
+    public List<Student> getBottomStudentsByGpa(int n) {
+        return collectRanked(gpaIndex, n);
+    }
+    
+    @Override
+    public List<Student> getStudentsEnrolledBetween(LocalDate from, LocalDate to, int limit) {
+        return collectRanked(enrollmentIndex.subSet(new RankKey(from.toEpochDay(), Integer.MIN_VALUE), true,
+                new RankKey(to.toEpochDay(), Integer.MAX_VALUE), true), limit);
+    }
+    
+    private List<Student> collectRanked(Iterable<RankKey> keys, int limit) {
+        List<Student> students = new ArrayList<>();
+        for (RankKey key : keys) {
+            if (students.size() >= limit) {
+                break;
+            }
+            Student student = current(key.id);
+            if (student != null) {
+                students.add(new Student(student));
+            }
+        }
+        return students;
+    }
+    
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery) {
+        return searchStudentsByName(nameQuery, 0, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Substring search over full names, returning matches in ID order.
+     * Queries of three or more characters are answered from the trigram
+     * index; shorter ones fall back to the cached lower-cased names.
+     */
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery, int offset, int limit) {
+        String query = nameQuery.toLowerCase(Locale.ROOT);
+        Iterable<Integer> candidates = searchCandidates(query);
+        List<Student> results = new ArrayList<>();
+        int skipped = 0;
+        for (Integer id : candidates) {
+            if (results.size() >= limit) {
+                break;
+            }
+            String name = searchNames.get(id);
+            Student student = current(id);
+            if (name == null || student == null || !name.contains(query)) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            results.add(new Student(student));
+        }
+        return results;
+    }
+    
+    private Iterable<Integer> searchCandidates(String query) {
+        if (query.length() < 3) {
+            return searchNames.keySet();
+        }
+        // Walk the rarest trigram's postings; the rest are checked on the name itself
+        NavigableSet<Integer> rarest = null;
+        for (int i = 0; i + 3 <= query.length(); i++) {
+            NavigableSet<Integer> ids = trigramIndex.get(query.substring(i, i + 3));
+            if (ids == null) {
+                return Collections.emptyList();
+            }
+            if (rarest == null || ids.size() < rarest.size()) {
+                rarest = ids;
+            }
+        }
+        return rarest;
+    }
+    
+    @Override
+    public boolean updateStudent(int id, Student updatedStudent) {
+        return updateStudent(id, existing -> updatedStudent);
+    }
+    
+    /**
+     * Atomically replaces the student with the given ID by the result of
+     * {@code modifier}, which receives a copy of the current record and
+     * may edit and return it. The modifier runs under the ID's lock. The
+     * result is copied in turn, so the caller keeps no handle on the
+     * stored record.
+     */
+    @Override
+    public boolean updateStudent(int id, UnaryOperator<Student> modifier) {
+        ReentrantLock lock = lockFor(id);
+        long seq = 0;
+        lock.lock();
+        try {
+            Student previous = current(id);
+            if (previous == null) {
+                return false;
+            }
+            Student updatedStudent = new Student(modifier.apply(new Student(previous)));
+            updatedStudent.setStudentId(id);
+            if (!claimEmail(updatedStudent)) {
+                throw new IllegalArgumentException("Email already registered: " + updatedStudent.getEmail());
+            }
+            if (log != null) {
+                try {
+                    seq = log.appendPut(updatedStudent);
+                } catch (RuntimeException e) {
+                    releaseEmail(updatedStudent, previous);
+                    throw e;
+                }
+            }
+            commit(id, updatedStudent);
+            reindexStudent(previous, updatedStudent);
+            releaseEmail(previous, updatedStudent);
+            changeFeed.publish(previous, updatedStudent);
+        } finally {
+            lock.unlock();
+        }
+        afterWrite(seq);
+        return true;
+    }
+    
+    @Override
+    public boolean deleteStudent(int id) {
+        ReentrantLock lock = lockFor(id);
+        long seq = 0;
+        lock.lock();
+        try {
+            Student removed = current(id);
+            if (removed == null) {
+                return false;
+            }
+            if (log != null) {
+                seq = log.appendDelete(id);
+            }
+            commit(id, null);
+            unindexStudent(removed);
+            releaseEmail(removed, null);
+            changeFeed.publish(removed, null);
+        } finally {
+            lock.unlock();
+        }
+        afterWrite(seq);
+        return true;
+    }
+    
+    /**
+     * Batch update: IDs are grouped by lock stripe, so each stripe is locked
+     * once and its changes go to the log in one append; the whole batch
+     * then waits for a single sync.
+     */
+    @Override
+    public BatchResult updateStudents(Collection<Integer> ids, UnaryOperator<Student> modifier) {
+        BatchResult result = new BatchResult();
+        long seq = 0;
+        for (List<Integer> stripeIds : groupByStripe(ids)) {
+            ReentrantLock lock = lockFor(stripeIds.get(0));
+            lock.lock();
+            try {
+                List<Student> previous = new ArrayList<>(stripeIds.size());
+                List<Student> updated = new ArrayList<>(stripeIds.size());
+                for (int id : stripeIds) {
+                    Student current = current(id);
+                    Student updatedStudent = current == null ? null
+                            : Student.copyOf(modifier.apply(new Student(current)));
+                    if (updatedStudent == null) {
+                        result.record(id, current == null ? BatchResult.Outcome.NOT_FOUND
+                                : BatchResult.Outcome.SKIPPED);
+                        continue;
+                    }
+                    updatedStudent.setStudentId(id);
+                    if (!claimEmail(updatedStudent)) {
+                        result.record(id, BatchResult.Outcome.DUPLICATE);
+                        continue;
+                    }
+                    previous.add(current);
+                    updated.add(updatedStudent);
+                }
+                if (log != null && !updated.isEmpty()) {
+                    try {
+                        seq = log.appendPuts(updated);
+                    } catch (RuntimeException e) {
+                        for (int i = 0; i < updated.size(); i++) {
+                            releaseEmail(updated.get(i), previous.get(i));
+                        }
+                        throw e;
+                    }
+                }
+                // The stripe's changes become visible to snapshots together
+                List<Integer> updatedIds = new ArrayList<>(updated.size());
+                for (Student updatedStudent : updated) {
+                    updatedIds.add(updatedStudent.getStudentId());
+                }
+                commit(updatedIds, updated);
+                for (int i = 0; i < updated.size(); i++) {
+                    Student updatedStudent = updated.get(i);
+                    reindexStudent(previous.get(i), updatedStudent);
+                    releaseEmail(previous.get(i), updatedStudent);
+                    changeFeed.publish(previous.get(i), updatedStudent);
+                    result.record(updatedStudent.getStudentId(), BatchResult.Outcome.UPDATED);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        afterWrite(seq);
+        return result;
+    }
+    
+    @Override
+    public BatchResult deleteStudents(Collection<Integer> ids) {
+        BatchResult result = new BatchResult();
+        long seq = 0;
+        for (List<Integer> stripeIds : groupByStripe(ids)) {
+            ReentrantLock lock = lockFor(stripeIds.get(0));
+            lock.lock();
+            try {
+                List<Integer> present = new ArrayList<>(stripeIds.size());
+                List<Student> removed = new ArrayList<>(stripeIds.size());
+                for (int id : stripeIds) {
+                    Student student = current(id);
+                    if (student != null) {
+                        present.add(id);
+                        removed.add(student);
+                    } else {
+                        result.record(id, BatchResult.Outcome.NOT_FOUND);
+                    }
+                }
+                if (present.isEmpty()) {
+                    continue;
+                }
+                if (log != null) {
+                    seq = log.appendDeletes(present);
+                }
+                commit(present, Collections.nCopies(present.size(), null));
+                for (Student student : removed) {
+                    unindexStudent(student);
+                    releaseEmail(student, null);
+                    changeFeed.publish(student, null);
+                    result.record(student.getStudentId(), BatchResult.Outcome.DELETED);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        afterWrite(seq);
+        return result;
+    }
+    
+    private List<List<Integer>> groupByStripe(Collection<Integer> ids) {
+        List<List<Integer>> stripes = new ArrayList<>(LOCK_STRIPES);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes.add(new ArrayList<>());
+        }
+        for (int id : ids) {
+            stripes.get(id & (LOCK_STRIPES - 1)).add(id);
+        }
+        stripes.removeIf(List::isEmpty);
+        return stripes;
+    }
+    
+    // Waits for the write to be durable (outside the ID lock, so other
+    // writers can join the same fsync) and starts compaction when due
+    private void afterWrite(long seq) {
+        if (log == null) {
+            return;
+        }
+        log.sync(seq);
+        if (log.shouldCompact() && compacting.compareAndSet(false, true)) {
+            Thread compactor = new Thread(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    System.err.println("Student log compaction failed: " + e.getMessage());
+                } finally {
+                    compacting.set(false);
+                }
+            }, "student-log-compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+    
+    /**
+     * Ordered feed of adds, updates and deletes applied from now on, for
+     * consumers that want deltas instead of rescanning getAllStudents().
+     */
+    public StudentChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+    
+    /**
+     * Folds the log into a fresh snapshot. No-op for in-memory repositories.
+     */
+    public void checkpoint() throws IOException {
+        if (log == null) {
+            return;
+        }
+        // Overlapping checkpoints could let an older snapshot replace a
+        // newer one after the newer one deleted its segments
+        synchronized (checkpointLock) {
+            long replayFrom;
+            int snapshotNextId;
+            Snapshot snapshot;
+            // A write holds its ID lock from log append to commit, so with
+            // every stripe held, each record in the old segments is
+            // committed and the pinned snapshot sees all of them
+            for (ReentrantLock lock : locks) {
+                lock.lock();
+            }
+            try {
+                replayFrom = log.roll();
+                snapshot = snapshot();
+                snapshotNextId = nextId.get();
+            } finally {
+                for (ReentrantLock lock : locks) {
+                    lock.unlock();
+                }
+            }
+            try (Snapshot pinned = snapshot) {
+                log.checkpoint(pinned.records(), replayFrom, snapshotNextId);
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            checkpoint();
+            log.close();
+        }
+    }
+    
+    @Override
+    public int getTotalStudents() {
+        return totals.students;
+    }
+    
+    @Override
+    public boolean studentExists(int id) {
+        return current(id) != null;
+    }
+    
+    /** Opens a point-in-time view; close it when done. */
+    public Snapshot snapshot() {
+        commitLock.lock();
+        try {
+            long version = committedVersion;
+            openSnapshots.merge(version, 1, Integer::sum);
+            return new Snapshot(version, totals);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+    
+    private Student current(int id) {
+        Version head = studentDatabase.get(id);
+        return head == null ? null : head.value;
+    }
+    
+    private void commit(int id, Student value) {
+        commit(Collections.singletonList(id), Collections.singletonList(value));
+    }
+    
+    // Publishes the new values (null deletes) as one version. Callers hold
+    // the IDs' locks, so each ID's chain only grows in commit order.
+    private void commit(List<Integer> ids, List<Student> values) {
+        commitLock.lock();
+        try {
+            long version = committedVersion + 1;
+            long oldestNeeded = openSnapshots.isEmpty() ? version : openSnapshots.firstKey();
+            int students = totals.students;
+            double gpaSum = totals.gpaSum;
+            for (int i = 0; i < ids.size(); i++) {
+                int id = ids.get(i);
+                Student value = values.get(i);
+                Version head = studentDatabase.get(id);
+                if (head != null && head.value != null) {
+                    students--;
+                    gpaSum -= head.value.getGpa();
+                }
+                if (value != null) {
+                    students++;
+                    gpaSum += value.getGpa();
+                }
+                Version installed = new Version(value, version, head);
+                if (prune(installed, oldestNeeded)) {
+                    retainedIds.add(id);
+                }
+                if (value == null && installed.older == null) {
+                    studentDatabase.remove(id);
+                } else {
+                    studentDatabase.put(id, installed);
+                }
+            }
+            totals = new Totals(students, gpaSum);
+            committedVersion = version;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+    
+    private void releaseSnapshot(long version) {
+        commitLock.lock();
+        try {
+            openSnapshots.computeIfPresent(version, (key, count) -> count == 1 ? null : count - 1);
+            long oldestNeeded = openSnapshots.isEmpty() ? committedVersion : openSnapshots.firstKey();
+            for (Iterator<Integer> ids = retainedIds.iterator(); ids.hasNext(); ) {
+                int id = ids.next();
+                Version head = studentDatabase.get(id);
+                if (head == null || !prune(head, oldestNeeded)) {
+                    ids.remove();
+                    if (head != null && head.value == null && head.older == null) {
+                        studentDatabase.remove(id);
+                    }
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+    
+    // Unlinks versions no open snapshot can reach: everything below the
+    // newest one at or before oldestNeeded. True if older versions remain.
+    private static boolean prune(Version head, long oldestNeeded) {
+        Version node = head;
+        while (node.version > oldestNeeded && node.older != null) {
+            node = node.older;
+        }
+        node.older = null;
+        return node != head;
+    }
+    
+    @Override
+    public List<String> getAllDepartments() {
+        List<String> keys = new ArrayList<>(departmentIndex.keySet());
+        Collections.sort(keys);
+        List<String> departments = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            DepartmentEntry entry = departmentIndex.get(key);
+            if (entry != null && entry.name != null) {
+                departments.add(entry.name);
+            }
+        }
+        return departments;
+    }
+    
+    // Keeps the secondary indexes in step with studentDatabase. Callers hold
+    // the student's ID lock; compute() makes each index bucket's
+    // create/add and remove/drop-if-empty steps atomic across IDs.
+    private void indexStudent(Student student) {
+        indexAttributes(student);
+        int id = student.getStudentId();
+        String name = student.getFullName().toLowerCase(Locale.ROOT);
+        searchNames.put(id, name);
+        for (String trigram : trigrams(name)) {
+            trigramIndex.compute(trigram, (key, postings) -> {
+                if (postings == null) {
+                    postings = new ConcurrentSkipListSet<>();
+                }
+                postings.add(id);
+                return postings;
+            });
+        }
+    }
+    
+    private void unindexStudent(Student student) {
+        unindexAttributes(student);
+        int id = student.getStudentId();
+        // Use the cached name: the indexed one, even if the object was edited since
+        String name = searchNames.remove(id);
+        if (name != null) {
+            for (String trigram : trigrams(name)) {
+                trigramIndex.computeIfPresent(trigram, (key, postings) -> {
+                    postings.remove(id);
+                    return postings.isEmpty() ? null : postings;
+                });
+            }
+        }
+    }
+    
+    // An update that keeps the name, like most GPA and contact changes,
+    // leaves the name and trigram entries alone
+    private void reindexStudent(Student previous, Student updated) {
+        String name = updated.getFullName().toLowerCase(Locale.ROOT);
+        if (!name.equals(searchNames.get(updated.getStudentId()))) {
+            unindexStudent(previous);
+            indexStudent(updated);
+            return;
+        }
+        unindexAttributes(previous);
+        indexAttributes(updated);
+    }
+    
+    // Department, GPA and enrollment entries
+    private void indexAttributes(Student student) {
+        int id = student.getStudentId();
+        double gpa = student.getGpa();
+        departmentIndex.compute(departmentKey(student.getDepartment()), (key, entry) -> {
+            if (entry == null) {
+                entry = new DepartmentEntry(student.getDepartment());
+            }
+            if (entry.ids.add(id)) {
+                entry.gpaSum += gpa;
+            }
+            return entry;
+        });
+        gpaIndex.add(new RankKey(gpa, id));
+        if (student.getEnrollmentDate() != null) {
+            enrollmentIndex.add(new RankKey(student.getEnrollmentDate().toEpochDay(), id));
+        }
+    }
+    
+    private void unindexAttributes(Student student) {
+        int id = student.getStudentId();
+        double gpa = student.getGpa();
+        departmentIndex.computeIfPresent(departmentKey(student.getDepartment()), (key, entry) -> {
+            if (entry.ids.remove(id)) {
+                entry.gpaSum -= gpa;
+            }
+            return entry.ids.isEmpty() ? null : entry;
+        });
+        gpaIndex.remove(new RankKey(gpa, id));
+        if (student.getEnrollmentDate() != null) {
+            enrollmentIndex.remove(new RankKey(student.getEnrollmentDate().toEpochDay(), id));
+        }
+    }
+    
+    // Reserves the student's email for its ID. True if it was free or
+    // already this student's; students without an email always succeed.
+    private boolean claimEmail(Student student) {
+        String key = emailKey(student.getEmail());
+        if (key == null) {
+            return true;
+        }
+        Integer owner = emailIndex.putIfAbsent(key, student.getStudentId());
+        return owner == null || owner == student.getStudentId();
+    }
+    
+    // Gives up the email {@code previous} held, unless {@code current}
+    // (the record replacing it, or null) keeps the same one
+    private void releaseEmail(Student previous, Student current) {
+        String key = emailKey(previous.getEmail());
+        if (key != null && (current == null || !key.equals(emailKey(current.getEmail())))) {
+            emailIndex.remove(key, previous.getStudentId());
+        }
+    }
+    
+    private static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            trigrams.add(text.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+    
+    private static String departmentKey(String department) {
+        return department == null ? "" : department.toLowerCase(Locale.ROOT);
+    }
+    
+    private static String emailKey(String email) {
+        if (email == null || email.trim().isEmpty()) {
+            return null;
+        }
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
+
+/**
+ * Alternative StudentStore that keeps students in primitive columns rather
+ * than one object per record: an int-keyed open-addressing map from ID to
+ * row, GPAs in a double[], enrollment dates as int epoch days, and
+ * departments as codes into a dictionary of spellings, each of which
+ * belongs to a case-insensitive department group that carries the
+ * aggregates. Only the free-text fields stay
+ * as Strings. Student objects are built on the way out and are copies, so
+ * editing one has no effect on the store.
+ *
+ * Rows are appended in insertion order and deleted rows are only marked
+ * dead until enough accumulate to compact. While IDs arrive in increasing
+ * order (the normal case) the ID column is sorted and paging is a binary
+ * search. Department filters and name search scan the columns, which is
+ * cheap per row but O(n); use StudentRepository when those dominate.
+ * All access goes through one read-write lock.
+ */
+class ColumnarStudentRepository implements StudentStore {
+    private static final int INITIAL_ROWS = 1024;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    
+    /**
+     * Open-addressing int -> int hash map with linear probing and
+     * backward-shift deletion. Key 0 marks an empty slot, which is safe
+     * because student IDs are positive.
+     */
+    static class IntIntMap {
+        private int[] keys = new int[16];
+        private int[] values = new int[16];
+        private int size;
+        
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+        
+        void put(int key, int value) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == 0) {
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+        
+        void remove(int key) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != key) {
+                if (keys[slot] == 0) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            // Pull later entries of the probe chain back into the gap
+            int gap = slot;
+            for (int next = (gap + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+                int home = mix(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+            }
+            keys[gap] = 0;
+            size--;
+        }
+        
+        void clear() {
+            Arrays.fill(keys, 0);
+            size = 0;
+        }
+        
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[capacity];
+            values = new int[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+        
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final IntIntMap rowsById = new IntIntMap();
+    private final BitSet live = new BitSet();
+    private int[] ids = new int[INITIAL_ROWS];
+    private double[] gpas = new double[INITIAL_ROWS];
+    private int[] enrollmentDays = new int[INITIAL_ROWS];
+    private int[] departmentCodes = new int[INITIAL_ROWS];
+    private String[] firstNames = new String[INITIAL_ROWS];
+    private String[] lastNames = new String[INITIAL_ROWS];
+    private String[] emails = new String[INITIAL_ROWS];
+    private String[] phones = new String[INITIAL_ROWS];
+    private int rowCount;
+    private int liveCount;
+    private boolean sortedById = true;
+    
+    // Department dictionary: exact spelling -> code, code -> group
+    private final Map<String, Integer> departmentCodesBySpelling = new HashMap<>();
+    private String[] departmentSpellings = new String[16];
+    private int[] departmentGroups = new int[16];
+    // Case-insensitive department groups with their display name and aggregates
+    private final Map<String, Integer> groupsByKey = new HashMap<>();
+    private String[] groupKeys = new String[16];
+    private String[] groupNames = new String[16];
+    private int[] groupSizes = new int[16];
+    private double[] groupGpaSums = new double[16];
+    // GPA -> number of live students holding it, for min/max
+    private final NavigableMap<Double, Integer> gpaCounts = new TreeMap<>();
+    // Normalized email -> owning ID, kept in step by writeRow/unaccount
+    private final Map<String, Integer> emailIds = new HashMap<>();
+    
+    public ColumnarStudentRepository() {
+        for (Student student : StudentRepository.sampleStudents()) {
+            addStudent(student);
+        }
+    }
+    
+    @Override
+    public Student addStudent(Student student) {
+        if (student.getStudentId() <= 0) {
+            student.setStudentId(nextId.getAndIncrement());
+        } else {
+            // Keep generated IDs clear of ones assigned by the caller
+            nextId.accumulateAndGet(student.getStudentId() + 1, Math::max);
+        }
+        lock.writeLock().lock();
+        try {
+            // putRow would silently overwrite the existing row
+            if (rowsById.get(student.getStudentId()) >= 0) {
+                throw new IllegalArgumentException("Student ID already exists: " + student.getStudentId());
+            }
+            if (emailTaken(student)) {
+                throw new IllegalArgumentException("Email already registered: " + student.getEmail());
+            }
+            putRow(student);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return student;
+    }
+    
+    @Override
+    public int reserveIds(int count) {
+        return nextId.getAndAdd(count);
+    }
+    
+    @Override
+    public BatchResult addStudents(List<Student> students) {
+        BatchResult result = new BatchResult();
+        lock.writeLock().lock();
+        try {
+            for (Student student : students) {
+                nextId.accumulateAndGet(student.getStudentId() + 1, Math::max);
+                if (emailTaken(student)) {
+                    result.record(student.getStudentId(), BatchResult.Outcome.DUPLICATE);
+                    continue;
+                }
+                putRow(student);
+                result.record(student.getStudentId(), BatchResult.Outcome.CREATED);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return result;
+    }
+    
+    @Override
+    public List<Student> getAllStudents() {
+        return getStudentsAfter(0, Integer.MAX_VALUE);
+    }
+    
+    @Override
+    public List<Student> getStudentsAfter(int afterId, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Student> page = new ArrayList<>(Math.min(limit, Math.min(liveCount, 1024)));
+            if (sortedById) {
+                for (int row = firstRowAfter(afterId); row < rowCount && page.size() < limit; row++) {
+                    if (live.get(row)) {
+                        page.add(materialize(row));
+                    }
+                }
+                return page;
+            }
+            // Out-of-order IDs: collect matching rows and sort them
+            List<Integer> rows = new ArrayList<>();
+            for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+                if (ids[row] > afterId) {
+                    rows.add(row);
+                }
+            }
+            rows.sort(Comparator.comparingInt(row -> ids[row]));
+            for (int i = 0; i < rows.size() && page.size() < limit; i++) {
+                page.add(materialize(rows.get(i)));
+            }
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public Optional<Student> getStudentById(int id) {
+        lock.readLock().lock();
+        try {
+            int row = rowsById.get(id);
+            return row < 0 ? Optional.empty() : Optional.of(materialize(row));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public Optional<Student> getStudentByEmail(String email) {
+        String key = emailKey(email);
+        lock.readLock().lock();
+        try {
+            Integer id = key == null ? null : emailIds.get(key);
+            return id == null ? Optional.empty() : Optional.of(materialize(rowsById.get(id)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public List<Student> getStudentsByDepartment(String department) {
+        lock.readLock().lock();
+        try {
+            List<Student> students = new ArrayList<>();
+            Integer group = groupsByKey.get(departmentKey(department));
+            if (group == null) {
+                return students;
+            }
+            for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+                if (departmentGroups[departmentCodes[row]] == group) {
+                    students.add(materialize(row));
+                }
+            }
+            return students;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public int getDepartmentSize(String department) {
+        lock.readLock().lock();
+        try {
+            Integer group = groupsByKey.get(departmentKey(department));
+            return group == null ? 0 : groupSizes[group];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public double getDepartmentAverageGpa(String department) {
+        lock.readLock().lock();
+        try {
+            Integer group = groupsByKey.get(departmentKey(department));
+            if (group == null || groupSizes[group] == 0) {
+                return 0.0;
+            }
+            return groupGpaSums[group] / groupSizes[group];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public double getAverageGpa() {
+        lock.readLock().lock();
+        try {
+            double sum = 0.0;
+            for (int group = 0; group < groupsByKey.size(); group++) {
+                sum += groupGpaSums[group];
+            }
+            return liveCount == 0 ? 0.0 : sum / liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public double getMinGpa() {
+        lock.readLock().lock();
+        try {
+            return gpaCounts.isEmpty() ? 0.0 : gpaCounts.firstKey();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public double getMaxGpa() {
+        lock.readLock().lock();
+        try {
+            return gpaCounts.isEmpty() ? 0.0 : gpaCounts.lastKey();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Ranked queries scan the GPA or date column, keeping the best rows in a
+    // bounded heap: O(n log k) rather than the indexed store's O(log n + k)
+    @Override
+    public List<Student> getStudentsByGpaRange(double min, double max, int limit) {
+        return selectRows(row -> gpas[row] >= min && gpas[row] <= max, byGpa(), limit);
+    }
+    
+    @Override
+    public List<Student> getTopStudentsByGpa(int n) {
+        return selectRows(row -> true, byGpa().reversed(), n);
+    }
+    
+    @Override
+    public List<Student> getBottomStudentsByGpa(int n) {
+        return selectRows(row -> true, byGpa(), n);
+    }
+    
+    @Override
+    public List<Student> getStudentsEnrolledBetween(LocalDate from, LocalDate to, int limit) {
+        long first = from.toEpochDay();
+        long last = to.toEpochDay();
+        Comparator<Integer> byDate = Comparator.<Integer>comparingInt(row -> enrollmentDays[row])
+                .thenComparingInt(row -> ids[row]);
+        return selectRows(row -> enrollmentDays[row] != NO_DATE
+                && enrollmentDays[row] >= first && enrollmentDays[row] <= last, byDate, limit);
+    }
+    
+    private Comparator<Integer> byGpa() {
+        return Comparator.<Integer>comparingDouble(row -> gpas[row]).thenComparingInt(row -> ids[row]);
+    }
+    
+    private List<Student> selectRows(IntPredicate matches, Comparator<Integer> order, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        lock.readLock().lock();
+        try {
+            // Max-heap on the order, so the worst kept row is evicted first
+            PriorityQueue<Integer> best = new PriorityQueue<>(order.reversed());
+            for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+                if (matches.test(row)) {
+                    best.add(row);
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+            List<Integer> rows = new ArrayList<>(best);
+            rows.sort(order);
+            List<Student> students = new ArrayList<>(rows.size());
+            for (int row : rows) {
+                students.add(materialize(row));
+            }
+            return students;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery) {
+        return searchStudentsByName(nameQuery, 0, Integer.MAX_VALUE);
+    }
+    
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery, int offset, int limit) {
+        String query = nameQuery.toLowerCase(Locale.ROOT);
+        lock.readLock().lock();
+        try {
+            List<Integer> rows = new ArrayList<>();
+            for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+                if (nameContains(row, query)) {
+                    rows.add(row);
+                }
+            }
+            if (!sortedById) {
+                rows.sort(Comparator.comparingInt(row -> ids[row]));
+            }
+            List<Student> results = new ArrayList<>();
+            for (int i = offset; i < rows.size() && results.size() < limit; i++) {
+                results.add(materialize(rows.get(i)));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean updateStudent(int id, Student updatedStudent) {
+        return updateStudent(id, existing -> updatedStudent);
+    }
+    
+    @Override
+    public boolean updateStudent(int id, UnaryOperator<Student> modifier) {
+        lock.writeLock().lock();
+        try {
+            int row = rowsById.get(id);
+            if (row < 0) {
+                return false;
+            }
+            Student updatedStudent = modifier.apply(materialize(row));
+            updatedStudent.setStudentId(id);
+            if (emailTaken(updatedStudent)) {
+                throw new IllegalArgumentException("Email already registered: " + updatedStudent.getEmail());
+            }
+            unaccount(row);
+            writeRow(row, updatedStudent);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean deleteStudent(int id) {
+        lock.writeLock().lock();
+        try {
+            int row = rowsById.get(id);
+            if (row < 0) {
+                return false;
+            }
+            unaccount(row);
+            rowsById.remove(id);
+            live.clear(row);
+            firstNames[row] = lastNames[row] = emails[row] = phones[row] = null;
+            liveCount--;
+            if (rowCount - liveCount > Math.max(INITIAL_ROWS, rowCount / 2)) {
+                compact();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public BatchResult updateStudents(Collection<Integer> ids, UnaryOperator<Student> modifier) {
+        BatchResult result = new BatchResult();
+        lock.writeLock().lock();
+        try {
+            for (int id : ids) {
+                int row = rowsById.get(id);
+                Student updatedStudent = row < 0 ? null : modifier.apply(materialize(row));
+                if (updatedStudent == null) {
+                    result.record(id, row < 0 ? BatchResult.Outcome.NOT_FOUND : BatchResult.Outcome.SKIPPED);
+                    continue;
+                }
+                updatedStudent.setStudentId(id);
+                if (emailTaken(updatedStudent)) {
+                    result.record(id, BatchResult.Outcome.DUPLICATE);
+                    continue;
+                }
+                unaccount(row);
+                writeRow(row, updatedStudent);
+                result.record(id, BatchResult.Outcome.UPDATED);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return result;
+    }
+    
+    @Override
+    public BatchResult deleteStudents(Collection<Integer> ids) {
+        BatchResult result = new BatchResult();
+        lock.writeLock().lock();
+        try {
+            // The write lock is reentrant, so the batch holds it throughout
+            for (int id : ids) {
+                result.record(id, deleteStudent(id) ? BatchResult.Outcome.DELETED : BatchResult.Outcome.NOT_FOUND);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return result;
+    }
+    
+    @Override
+    public int getTotalStudents() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean studentExists(int id) {
+        lock.readLock().lock();
+        try {
+            return rowsById.get(id) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public List<String> getAllDepartments() {
+        lock.readLock().lock();
+        try {
+            List<Integer> groups = new ArrayList<>();
+            for (int group = 0; group < groupsByKey.size(); group++) {
+                if (groupSizes[group] > 0 && groupNames[group] != null) {
+                    groups.add(group);
+                }
+            }
+            groups.sort(Comparator.comparing(group -> groupKeys[group]));
+            List<String> departments = new ArrayList<>(groups.size());
+            for (int group : groups) {
+                departments.add(groupNames[group]);
+            }
+            return departments;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public void close() {
+    }
+    
+    // Callers hold the write lock
+    private void putRow(Student student) {
+        int id = student.getStudentId();
+        int row = rowsById.get(id);
+        if (row >= 0) {
+            unaccount(row);
+        } else {
+            if (rowCount == ids.length) {
+                grow(rowCount * 2);
+            }
+            row = rowCount++;
+            if (row > 0 && ids[row - 1] >= id) {
+                sortedById = false;
+            }
+            rowsById.put(id, row);
+            live.set(row);
+            liveCount++;
+        }
+        writeRow(row, student);
+    }
+    
+    private void writeRow(int row, Student student) {
+        ids[row] = student.getStudentId();
+        firstNames[row] = student.getFirstName();
+        lastNames[row] = student.getLastName();
+        emails[row] = student.getEmail();
+        phones[row] = student.getPhoneNumber();
+        LocalDate date = student.getEnrollmentDate();
+        enrollmentDays[row] = date == null ? NO_DATE : (int) date.toEpochDay();
+        gpas[row] = student.getGpa();
+        int code = departmentCode(student.getDepartment());
+        departmentCodes[row] = code;
+        int group = departmentGroups[code];
+        if (groupSizes[group]++ == 0) {
+            // A department takes the spelling of whoever (re)populates it
+            groupNames[group] = student.getDepartment();
+        }
+        groupGpaSums[group] += gpas[row];
+        gpaCounts.merge(gpas[row], 1, Integer::sum);
+        String email = emailKey(emails[row]);
+        if (email != null) {
+            emailIds.put(email, ids[row]);
+        }
+    }
+    
+    private void unaccount(int row) {
+        int group = departmentGroups[departmentCodes[row]];
+        groupSizes[group]--;
+        groupGpaSums[group] -= gpas[row];
+        gpaCounts.merge(gpas[row], -1, (count, delta) -> count + delta == 0 ? null : count + delta);
+        String email = emailKey(emails[row]);
+        if (email != null) {
+            emailIds.remove(email, ids[row]);
+        }
+    }
+    
+    // Callers hold the write lock, so check-then-write is atomic
+    private boolean emailTaken(Student student) {
+        String email = emailKey(student.getEmail());
+        Integer owner = email == null ? null : emailIds.get(email);
+        return owner != null && owner != student.getStudentId();
+    }
+    
+    private Student materialize(int row) {
+        Student student = new Student(ids[row], firstNames[row], lastNames[row], emails[row], phones[row],
+                departmentSpellings[departmentCodes[row]]);
+        student.setEnrollmentDate(enrollmentDays[row] == NO_DATE ? null : LocalDate.ofEpochDay(enrollmentDays[row]));
+        student.setGpa(gpas[row]);
+        return student;
+    }
+    
+    private int departmentCode(String department) {
+        Integer code = departmentCodesBySpelling.get(department);
+        if (code != null) {
+            return code;
+        }
+        String key = departmentKey(department);
+        Integer group = groupsByKey.get(key);
+        if (group == null) {
+            group = groupsByKey.size();
+            if (group == groupKeys.length) {
+                groupKeys = Arrays.copyOf(groupKeys, group * 2);
+                groupNames = Arrays.copyOf(groupNames, group * 2);
+                groupSizes = Arrays.copyOf(groupSizes, group * 2);
+                groupGpaSums = Arrays.copyOf(groupGpaSums, group * 2);
+            }
+            groupsByKey.put(key, group);
+            groupKeys[group] = key;
+        }
+        int next = departmentCodesBySpelling.size();
+        if (next == departmentSpellings.length) {
+            departmentSpellings = Arrays.copyOf(departmentSpellings, next * 2);
+            departmentGroups = Arrays.copyOf(departmentGroups, next * 2);
+        }
+        departmentCodesBySpelling.put(department, next);
+        departmentSpellings[next] = department;
+        departmentGroups[next] = group;
+        return next;
+    }
+    
+    // Case-insensitive substring match over "first last" without building the string
+    private boolean nameContains(int row, String query) {
+        String first = firstNames[row] == null ? "null" : firstNames[row];
+        String last = lastNames[row] == null ? "null" : lastNames[row];
+        int length = first.length() + 1 + last.length();
+        for (int start = 0; start + query.length() <= length; start++) {
+            int i = 0;
+            while (i < query.length()) {
+                int at = start + i;
+                char c = at < first.length() ? first.charAt(at)
+                        : at == first.length() ? ' ' : last.charAt(at - first.length() - 1);
+                if (Character.toLowerCase(c) != query.charAt(i)) {
+                    break;
+                }
+                i++;
+            }
+            if (i == query.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private int firstRowAfter(int afterId) {
+        int low = 0;
+        int high = rowCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] <= afterId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        gpas = Arrays.copyOf(gpas, capacity);
+        enrollmentDays = Arrays.copyOf(enrollmentDays, capacity);
+        departmentCodes = Arrays.copyOf(departmentCodes, capacity);
+        firstNames = Arrays.copyOf(firstNames, capacity);
+        lastNames = Arrays.copyOf(lastNames, capacity);
+        emails = Arrays.copyOf(emails, capacity);
+        phones = Arrays.copyOf(phones, capacity);
+    }
+    
+    // Squeezes out dead rows, keeping the survivors in order
+    private void compact() {
+        int target = 0;
+        rowsById.clear();
+        for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+            ids[target] = ids[row];
+            gpas[target] = gpas[row];
+            enrollmentDays[target] = enrollmentDays[row];
+            departmentCodes[target] = departmentCodes[row];
+            firstNames[target] = firstNames[row];
+            lastNames[target] = lastNames[row];
+            emails[target] = emails[row];
+            phones[target] = phones[row];
+            rowsById.put(ids[target], target);
+            target++;
+        }
+        for (int row = target; row < rowCount; row++) {
+            firstNames[row] = lastNames[row] = emails[row] = phones[row] = null;
+        }
+        rowCount = target;
+        live.clear();
+        live.set(0, target);
+    }
+    
+    private static String departmentKey(String department) {
+        return department == null ? "" : department.toLowerCase(Locale.ROOT);
+    }
+    
+    private static String emailKey(String email) {
+        if (email == null || email.trim().isEmpty()) {
+            return null;
+        }
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
+
+/**
+ * Read-through cache for StudentStore point lookups, for backends where
+ * getStudentById is expensive. Bounded both by entry count and by an
+ * estimated byte weight, evicting least-recently-used entries first.
+ * Writes go straight to the backing store and then invalidate the cached
+ * entry. The cache is split into segments, each under its own lock, so
+ * concurrent lookups of different IDs rarely contend.
+ */
+class CachingStudentStore implements StudentStore {
+    private static final int SEGMENTS = 16;
+    
+    static class CacheStats {
+        final long hits;
+        final long misses;
+        final long evictions;
+        final long size;
+        final long weight;
+        
+        CacheStats(long hits, long misses, long evictions, long size, long weight) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+            this.weight = weight;
+        }
+        
+        double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0.0 : (double) hits / requests;
+        }
+    }
+    
+    private static class Entry {
+        final Student student;
+        final long weight;
+        
+        Entry(Student student) {
+            this.student = student;
+            this.weight = weigh(student);
+        }
+    }
+    
+    private class Segment {
+        final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long weight;
+        // Bumped by every invalidation, so a load that raced with a write
+        // can tell its result is stale and skip caching it
+        long version;
+        
+        synchronized Student get(int id) {
+            Entry entry = entries.get(id);
+            return entry == null ? null : entry.student;
+        }
+        
+        synchronized long version() {
+            return version;
+        }
+        
+        synchronized void putIfCurrent(int id, Student student, long loadedAtVersion) {
+            if (version != loadedAtVersion) {
+                return;
+            }
+            Entry entry = new Entry(student);
+            Entry previous = entries.put(id, entry);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entry.weight;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntriesPerSegment || weight > maxWeightPerSegment) {
+                weight -= eldest.next().weight;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+        
+        synchronized void invalidate(int id) {
+            version++;
+            Entry removed = entries.remove(id);
+            if (removed != null) {
+                weight -= removed.weight;
+            }
+        }
+    }
+    
+    private final StudentStore delegate;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxEntriesPerSegment;
+    private final long maxWeightPerSegment;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    CachingStudentStore(StudentStore delegate, int maxEntries, long maxWeightBytes) {
+        this.delegate = delegate;
+        this.maxEntriesPerSegment = Math.max(1, maxEntries / SEGMENTS);
+        this.maxWeightPerSegment = Math.max(1, maxWeightBytes / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+    
+    CacheStats stats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+                weight += segment.weight;
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size, weight);
+    }
+    
+    @Override
+    public Optional<Student> getStudentById(int id) {
+        Segment segment = segmentFor(id);
+        Student cached = segment.get(id);
+        if (cached != null) {
+            hits.increment();
+            return Optional.of(new Student(cached));
+        }
+        misses.increment();
+        long version = segment.version();
+        Optional<Student> loaded = delegate.getStudentById(id);
+        loaded.ifPresent(student -> segment.putIfCurrent(id, new Student(student), version));
+        return loaded;
+    }
+    
+    @Override
+    public boolean studentExists(int id) {
+        return getStudentById(id).isPresent();
+    }
+    
+    // Email lookups aren't cached: entries are keyed and invalidated by ID
+    @Override
+    public Optional<Student> getStudentByEmail(String email) {
+        return delegate.getStudentByEmail(email);
+    }
+    
+    @Override
+    public Student addStudent(Student student) {
+        Student added = delegate.addStudent(student);
+        segmentFor(added.getStudentId()).invalidate(added.getStudentId());
+        return added;
+    }
+    
+    @Override
+    public int reserveIds(int count) {
+        return delegate.reserveIds(count);
+    }
+    
+    @Override
+    public BatchResult addStudents(List<Student> students) {
+        try {
+            return delegate.addStudents(students);
+        } finally {
+            for (Student student : students) {
+                segmentFor(student.getStudentId()).invalidate(student.getStudentId());
+            }
+        }
+    }
+    
+    @Override
+    public boolean updateStudent(int id, Student updatedStudent) {
+        try {
+            return delegate.updateStudent(id, updatedStudent);
+        } finally {
+            segmentFor(id).invalidate(id);
+        }
+    }
+    
+    @Override
+    public boolean updateStudent(int id, UnaryOperator<Student> modifier) {
+        try {
+            return delegate.updateStudent(id, modifier);
+        } finally {
+            segmentFor(id).invalidate(id);
+        }
+    }
+    
+    @Override
+    public boolean deleteStudent(int id) {
+        try {
+            return delegate.deleteStudent(id);
+        } finally {
+            segmentFor(id).invalidate(id);
+        }
+    }
+    
+    @Override
+    public BatchResult updateStudents(Collection<Integer> ids, UnaryOperator<Student> modifier) {
+        try {
+            return delegate.updateStudents(ids, modifier);
+        } finally {
+            invalidateAll(ids);
+        }
+    }
+    
+    @Override
+    public BatchResult deleteStudents(Collection<Integer> ids) {
+        try {
+            return delegate.deleteStudents(ids);
+        } finally {
+            invalidateAll(ids);
+        }
+    }
+    
+    private void invalidateAll(Collection<Integer> ids) {
+        for (int id : ids) {
+            segmentFor(id).invalidate(id);
+        }
+    }
+    
+    @Override
+    public List<Student> getAllStudents() {
+        return delegate.getAllStudents();
+    }
+    
+    @Override
+    public List<Student> getStudentsAfter(int afterId, int limit) {
+        return delegate.getStudentsAfter(afterId, limit);
+    }
+    
+    @Override
+    public List<Student> getStudentsByDepartment(String department) {
+        return delegate.getStudentsByDepartment(department);
+    }
+    
+    @Override
+    public int getDepartmentSize(String department) {
+        return delegate.getDepartmentSize(department);
+    }
+    
+    @Override
+    public double getDepartmentAverageGpa(String department) {
+        return delegate.getDepartmentAverageGpa(department);
+    }
+    
+    @Override
+    public double getAverageGpa() {
+        return delegate.getAverageGpa();
+    }
+    
+    @Override
+    public double getMinGpa() {
+        return delegate.getMinGpa();
+    }
+    
+    @Override
+    public double getMaxGpa() {
+        return delegate.getMaxGpa();
+    }
+    
+    @Override
+    public List<Student> getStudentsByGpaRange(double min, double max, int limit) {
+        return delegate.getStudentsByGpaRange(min, max, limit);
+    }
+    
+    @Override
+    public List<Student> getTopStudentsByGpa(int n) {
+        return delegate.getTopStudentsByGpa(n);
+    }
+    
+    @Override
+    public List<Student> getBottomStudentsByGpa(int n) {
+        return delegate.getBottomStudentsByGpa(n);
+    }
+    
+    @Override
+    public List<Student> getStudentsEnrolledBetween(LocalDate from, LocalDate to, int limit) {
+        return delegate.getStudentsEnrolledBetween(from, to, limit);
+    }
+    
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery) {
+        return delegate.searchStudentsByName(nameQuery);
+    }
+    
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery, int offset, int limit) {
+        return delegate.searchStudentsByName(nameQuery, offset, limit);
+    }
+    
+    @Override
+    public int getTotalStudents() {
+        return delegate.getTotalStudents();
+    }
+    
+    @Override
+    public List<String> getAllDepartments() {
+        return delegate.getAllDepartments();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+    
+    private Segment segmentFor(int id) {
+        return segments[(id ^ (id >>> 16)) & (SEGMENTS - 1)];
+    }
+    
+    // Rough retained size: object headers and fields plus two bytes per char
+    private static long weigh(Student student) {
+        return 120 + 2L * (length(student.getFirstName()) + length(student.getLastName())
+                + length(student.getEmail()) + length(student.getPhoneNumber())
+                + length(student.getDepartment()));
+    }
+    
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
+
+/**
+ * Wire format between RemoteStudentStore and ShardServer. A request is an
+ * Op byte followed by its arguments; a response is a status byte followed
+ * by the result when OK, or by an error message. Students are encoded as
+ * in StudentLog records.
+ */
+class ShardProtocol {
+    enum Op {
+        ADD, RESERVE_IDS, ADD_BATCH, GET_ALL, PAGE, GET, GET_BY_EMAIL, EXISTS,
+        DEPARTMENT, DEPARTMENT_SIZE, DEPARTMENT_AVERAGE, DEPARTMENTS,
+        TOTAL, AVERAGE_GPA, MIN_GPA, MAX_GPA, GPA_RANGE, TOP_GPA, BOTTOM_GPA, ENROLLED_BETWEEN, SEARCH,
+        REPLACE, REPLACE_IF, DELETE, DELETE_BATCH, IN_RANGES, SHUTDOWN
+    }
+    
+    static final byte OK = 0;
+    static final byte REJECTED = 1;
+    static final byte FAILED = 2;
+    
+    // REPLACE_IF results
+    static final byte ABSENT = 0;
+    static final byte REPLACED = 1;
+    static final byte CHANGED = 2;
+    
+    private ShardProtocol() {
+    }
+    
+    /** Position of a student ID on the consistent-hash ring (MurmurHash3's finalizer). */
+    static int ringHash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+    /**
+     * Whether a ring position falls in any of the ranges, given as
+     * flattened (exclusive start, inclusive end) pairs. A range whose end
+     * is not above its start wraps past Integer.MAX_VALUE.
+     */
+    static boolean inRanges(int hash, int[] ranges) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            int start = ranges[i];
+            int end = ranges[i + 1];
+            if (start < end ? hash > start && hash <= end : hash > start || hash <= end) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    static byte[] encode(Student student) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            StudentLog.writeStudent(out, student);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    static void writeOptional(DataOutputStream out, Student student) throws IOException {
+        out.writeBoolean(student != null);
+        if (student != null) {
+            StudentLog.writeStudent(out, student);
+        }
+    }
+    
+    static Optional<Student> readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? Optional.of(StudentLog.readStudent(in)) : Optional.empty();
+    }
+    
+    static void writeStudents(DataOutputStream out, List<Student> students) throws IOException {
+        out.writeInt(students.size());
+        for (Student student : students) {
+            StudentLog.writeStudent(out, student);
+        }
+    }
+    
+    static List<Student> readStudents(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Student> students = new ArrayList<>(Math.min(count, 1 << 16));
+        for (int i = 0; i < count; i++) {
+            students.add(StudentLog.readStudent(in));
+        }
+        return students;
+    }
+    
+    static void writeIds(DataOutputStream out, Collection<Integer> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (int id : ids) {
+            out.writeInt(id);
+        }
+    }
+    
+    static List<Integer> readIds(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Integer> ids = new ArrayList<>(Math.min(count, 1 << 16));
+        for (int i = 0; i < count; i++) {
+            ids.add(in.readInt());
+        }
+        return ids;
+    }
+    
+    static void writeBatch(DataOutputStream out, BatchResult result) throws IOException {
+        out.writeInt(result.getOutcomes().size());
+        for (Map.Entry<Integer, BatchResult.Outcome> entry : result.getOutcomes().entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeByte(entry.getValue().ordinal());
+        }
+    }
+    
+    static BatchResult readBatch(DataInputStream in) throws IOException {
+        BatchResult result = new BatchResult();
+        int count = in.readInt();
+        BatchResult.Outcome[] outcomes = BatchResult.Outcome.values();
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            result.record(id, outcomes[in.readUnsignedByte()]);
+        }
+        return result;
+    }
+    
+    static void writeRanges(DataOutputStream out, int[] ranges) throws IOException {
+        out.writeInt(ranges.length);
+        for (int bound : ranges) {
+            out.writeInt(bound);
+        }
+    }
+    
+    static int[] readRanges(DataInputStream in) throws IOException {
+        int[] ranges = new int[in.readInt()];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = in.readInt();
+        }
+        return ranges;
+    }
+}
+
+/**
+ * Serves one partition of a ShardedStudentStore over ShardProtocol on a
+ * loopback socket, with a thread per connection. Run as its own JVM with
+ * {@code ShardServer port [data-directory]}: port 0 picks a free port, and
+ * once bound the server prints {@code LISTENING <port>} so the launching
+ * process can connect. Without a directory the partition lives in memory.
+ * A partition never gets the sample data; the coordinator seeds it.
+ */
+class ShardServer implements Closeable {
+    // Thrown inside a REPLACE_IF modifier when the stored record moved on
+    private static class StaleReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        StaleReadException() {
+            super(null, null, false, false);
+        }
+    }
+    
+    private final StudentStore store;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    
+    ShardServer(StudentStore store, InetSocketAddress address) throws IOException {
+        this.store = store;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+    }
+    
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    /** Accepts connections on a background thread. */
+    void start() {
+        Thread acceptor = new Thread(this::serve, "shard-acceptor-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+    
+    /** Accepts connections on the calling thread until the server is closed. */
+    void serve() {
+        while (!closed.get()) {
+            Socket connection;
+            try {
+                connection = serverSocket.accept();
+                connection.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    System.err.println("Shard accept failed: " + e.getMessage());
+                }
+                continue;
+            }
+            connections.add(connection);
+            Thread worker = new Thread(() -> handle(connection), "shard-connection");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            serverSocket.close();
+            for (Socket connection : connections) {
+                connection.close();
+            }
+        } catch (IOException e) {
+            // Sockets are being torn down anyway
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.err.println("Failed to save shard data: " + e.getMessage());
+        }
+    }
+    
+    // Each response is built in a buffer first, so a failure halfway
+    // through a result still produces one well-formed error response
+    private void handle(Socket connection) {
+        ShardProtocol.Op[] ops = ShardProtocol.Op.values();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        DataOutputStream result = new DataOutputStream(buffer);
+        try (connection;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+            int code;
+            while ((code = in.read()) >= 0) {
+                if (code >= ops.length) {
+                    throw new IOException("Unknown shard op " + code);
+                }
+                ShardProtocol.Op op = ops[code];
+                byte status = ShardProtocol.OK;
+                buffer.reset();
+                try {
+                    execute(op, in, result);
+                } catch (IllegalArgumentException e) {
+                    status = ShardProtocol.REJECTED;
+                    buffer.reset();
+                    result.writeUTF(String.valueOf(e.getMessage()));
+                } catch (RuntimeException e) {
+                    status = ShardProtocol.FAILED;
+                    buffer.reset();
+                    result.writeUTF(e.getMessage() == null ? e.toString() : e.getMessage());
+                }
+                result.flush();
+                out.writeByte(status);
+                buffer.writeTo(out);
+                out.flush();
+                if (op == ShardProtocol.Op.SHUTDOWN) {
+                    close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away or sent garbage; it reconnects if it needs to
+        } finally {
+            connections.remove(connection);
+        }
+    }
+    
+    private void execute(ShardProtocol.Op op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case ADD:
+                StudentLog.writeStudent(out, store.addStudent(StudentLog.readStudent(in)));
+                break;
+            case RESERVE_IDS:
+                out.writeInt(store.reserveIds(in.readInt()));
+                break;
+            case ADD_BATCH:
+                ShardProtocol.writeBatch(out, store.addStudents(ShardProtocol.readStudents(in)));
+                break;
+            case GET_ALL:
+                ShardProtocol.writeStudents(out, store.getAllStudents());
+                break;
+            case PAGE: {
+                int afterId = in.readInt();
+                int limit = in.readInt();
+                ShardProtocol.writeStudents(out, store.getStudentsAfter(afterId, limit));
+                break;
+            }
+            case GET:
+                ShardProtocol.writeOptional(out, store.getStudentById(in.readInt()).orElse(null));
+                break;
+            case GET_BY_EMAIL:
+                ShardProtocol.writeOptional(out, store.getStudentByEmail(StudentLog.readNullable(in)).orElse(null));
+                break;
+            case EXISTS:
+                out.writeBoolean(store.studentExists(in.readInt()));
+                break;
+            case DEPARTMENT:
+                ShardProtocol.writeStudents(out, store.getStudentsByDepartment(StudentLog.readNullable(in)));
+                break;
+            case DEPARTMENT_SIZE:
+                out.writeInt(store.getDepartmentSize(StudentLog.readNullable(in)));
+                break;
+            case DEPARTMENT_AVERAGE:
+                out.writeDouble(store.getDepartmentAverageGpa(StudentLog.readNullable(in)));
+                break;
+            case DEPARTMENTS: {
+                List<String> departments = store.getAllDepartments();
+                out.writeInt(departments.size());
+                for (String department : departments) {
+                    out.writeUTF(department);
+                }
+                break;
+            }
+            case TOTAL:
+                out.writeInt(store.getTotalStudents());
+                break;
+            case AVERAGE_GPA:
+                out.writeDouble(store.getAverageGpa());
+                break;
+            case MIN_GPA:
+                out.writeDouble(store.getMinGpa());
+                break;
+            case MAX_GPA:
+                out.writeDouble(store.getMaxGpa());
+                break;
+            case GPA_RANGE: {
+                double min = in.readDouble();
+                double max = in.readDouble();
+                int limit = in.readInt();
+                ShardProtocol.writeStudents(out, store.getStudentsByGpaRange(min, max, limit));
+                break;
+            }
+            case TOP_GPA:
+                ShardProtocol.writeStudents(out, store.getTopStudentsByGpa(in.readInt()));
+                break;
+            case BOTTOM_GPA:
+                ShardProtocol.writeStudents(out, store.getBottomStudentsByGpa(in.readInt()));
+                break;
+            case ENROLLED_BETWEEN: {
+                LocalDate from = LocalDate.ofEpochDay(in.readLong());
+                LocalDate to = LocalDate.ofEpochDay(in.readLong());
+                int limit = in.readInt();
+                ShardProtocol.writeStudents(out, store.getStudentsEnrolledBetween(from, to, limit));
+                break;
+            }
+            case SEARCH: {
+                String query = in.readUTF();
+                int offset = in.readInt();
+                int limit = in.readInt();
+                ShardProtocol.writeStudents(out, store.searchStudentsByName(query, offset, limit));
+                break;
+            }
+            case REPLACE: {
+                int id = in.readInt();
+                out.writeBoolean(store.updateStudent(id, StudentLog.readStudent(in)));
+                break;
+            }
+            case REPLACE_IF: {
+                int id = in.readInt();
+                byte[] expected = new byte[in.readInt()];
+                in.readFully(expected);
+                Student replacement = StudentLog.readStudent(in);
+                try {
+                    boolean found = store.updateStudent(id, current -> {
+                        if (!Arrays.equals(ShardProtocol.encode(current), expected)) {
+                            throw new StaleReadException();
+                        }
+                        return replacement;
+                    });
+                    out.writeByte(found ? ShardProtocol.REPLACED : ShardProtocol.ABSENT);
+                } catch (StaleReadException e) {
+                    out.writeByte(ShardProtocol.CHANGED);
+                }
+                break;
+            }
+            case DELETE:
+                out.writeBoolean(store.deleteStudent(in.readInt()));
+                break;
+            case DELETE_BATCH:
+                ShardProtocol.writeBatch(out, store.deleteStudents(ShardProtocol.readIds(in)));
+                break;
+            case IN_RANGES: {
+                int[] ranges = ShardProtocol.readRanges(in);
+                List<Student> matching = new ArrayList<>();
+                for (Student student : store.getAllStudents()) {
+                    if (ShardProtocol.inRanges(ShardProtocol.ringHash(student.getStudentId()), ranges)) {
+                        matching.add(student);
+                    }
+                }
+                ShardProtocol.writeStudents(out, matching);
+                break;
+            }
+            case SHUTDOWN:
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported shard op " + op);
+        }
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ShardServer port [data-directory]");
+            System.exit(2);
+        }
+        StudentStore store = args.length > 1
+                ? new StudentRepository(Paths.get(args[1]), false)
+                : StudentRepository.empty();
+        ShardServer server = new ShardServer(store,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0])));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        System.out.println("LISTENING " + server.getPort());
+        System.out.flush();
+        server.serve();
+    }
+}
+
+/**
+ * StudentStore client for a ShardServer. Every call is one synchronous
+ * request/response exchange on a pooled loopback connection, so
+ * concurrent callers each get a connection of their own. A server that
+ * can't be reached surfaces as UncheckedIOException; errors the server
+ * reports come back as IllegalArgumentException for rejected input and
+ * UncheckedIOException for anything else.
+ *
+ * A modifier can't be shipped to the server, so modifier updates read the
+ * student, apply the modifier here and write the result back only if the
+ * stored record is still byte-for-byte the one that was read, retrying
+ * from the read when another writer got there first.
+ */
+class RemoteStudentStore implements StudentStore {
+    private static final int MAX_IDLE_CONNECTIONS = 32;
+    
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    private interface Response<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+    
+    private static class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+        
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+        }
+    }
+    
+    private final InetSocketAddress address;
+    private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    private volatile boolean closed;
+    
+    RemoteStudentStore(InetSocketAddress address) {
+        this.address = address;
+    }
+    
+    InetSocketAddress getAddress() {
+        return address;
+    }
+    
+    @Override
+    public Student addStudent(Student student) {
+        Student added = call(ShardProtocol.Op.ADD, out -> StudentLog.writeStudent(out, student),
+                StudentLog::readStudent);
+        student.setStudentId(added.getStudentId());
+        return added;
+    }
+    
+    @Override
+    public int reserveIds(int count) {
+        return call(ShardProtocol.Op.RESERVE_IDS, out -> out.writeInt(count), DataInputStream::readInt);
+    }
+    
+    @Override
+    public BatchResult addStudents(List<Student> students) {
+        return call(ShardProtocol.Op.ADD_BATCH, out -> ShardProtocol.writeStudents(out, students),
+                ShardProtocol::readBatch);
+    }
+    
+    @Override
+    public List<Student> getAllStudents() {
+        return call(ShardProtocol.Op.GET_ALL, out -> { }, ShardProtocol::readStudents);
+    }
+    
+    @Override
+    public List<Student> getStudentsAfter(int afterId, int limit) {
+        return call(ShardProtocol.Op.PAGE, out -> {
+            out.writeInt(afterId);
+            out.writeInt(limit);
+        }, ShardProtocol::readStudents);
+    }
+    
+    @Override
+    public Optional<Student> getStudentById(int id) {
+        return call(ShardProtocol.Op.GET, out -> out.writeInt(id), ShardProtocol::readOptional);
+    }
+    
+    @Override
+    public Optional<Student> getStudentByEmail(String email) {
+        return call(ShardProtocol.Op.GET_BY_EMAIL, out -> StudentLog.writeNullable(out, email),
+                ShardProtocol::readOptional);
+    }
+    
+    @Override
+    public boolean studentExists(int id) {
+        return call(ShardProtocol.Op.EXISTS, out -> out.writeInt(id), DataInputStream::readBoolean);
+    }
+    
+    @Override
+    public List<Student> getStudentsByDepartment(String department) {
+        return call(ShardProtocol.Op.DEPARTMENT, out -> StudentLog.writeNullable(out, department),
+                ShardProtocol::readStudents);
+    }
+    
+    @Override
+    public int getDepartmentSize(String department) {
+        return call(ShardProtocol.Op.DEPARTMENT_SIZE, out -> StudentLog.writeNullable(out, department),
+                DataInputStream::readInt);
+    }
+    
+    @Override
+    public double getDepartmentAverageGpa(String department) {
+        return call(ShardProtocol.Op.DEPARTMENT_AVERAGE, out -> StudentLog.writeNullable(out, department),
+                DataInputStream::readDouble);
+    }
+    
+    @Override
+    public List<String> getAllDepartments() {
+        return call(ShardProtocol.Op.DEPARTMENTS, out -> { }, in -> {
+            int count = in.readInt();
+            List<String> departments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                departments.add(in.readUTF());
+            }
+            return departments;
+        });
+    }
+    
+    @Override
+    public int getTotalStudents() {
+        return call(ShardProtocol.Op.TOTAL, out -> { }, DataInputStream::readInt);
+    }
+    
+    @Override
+    public double getAverageGpa() {
+        return call(ShardProtocol.Op.AVERAGE_GPA, out -> { }, DataInputStream::readDouble);
+    }
+    
+    @Override
+    public double getMinGpa() {
+        return call(ShardProtocol.Op.MIN_GPA, out -> { }, DataInputStream::readDouble);
+    }
+    
+    @Override
+    public double getMaxGpa() {
+        return call(ShardProtocol.Op.MAX_GPA, out -> { }, DataInputStream::readDouble);
+    }
+    
+    @Override
+    public List<Student> getStudentsByGpaRange(double min, double max, int limit) {
+        return call(ShardProtocol.Op.GPA_RANGE, out -> {
+            out.writeDouble(min);
+            out.writeDouble(max);
+            out.writeInt(limit);
+        }, ShardProtocol::readStudents);
+    }
+    
+    @Override
+    public List<Student> getTopStudentsByGpa(int n) {
+        return call(ShardProtocol.Op.TOP_GPA, out -> out.writeInt(n), ShardProtocol::readStudents);
+    }
+    
+    @Override
+    public List<Student> getBottomStudentsByGpa(int n) {
+        return call(ShardProtocol.Op.BOTTOM_GPA, out -> out.writeInt(n), ShardProtocol::readStudents);
+    }
+    
+    @Override
+    public List<Student> getStudentsEnrolledBetween(LocalDate from, LocalDate to, int limit) {
+        return call(ShardProtocol.Op.ENROLLED_BETWEEN, out -> {
+            out.writeLong(from.toEpochDay());
+            out.writeLong(to.toEpochDay());
+            out.writeInt(limit);
+        }, ShardProtocol::readStudents);
+    }
+    
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery) {
+        return searchStudentsByName(nameQuery, 0, Integer.MAX_VALUE);
+    }
+    
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery, int offset, int limit) {
+        return call(ShardProtocol.Op.SEARCH, out -> {
+            out.writeUTF(nameQuery);
+            out.writeInt(offset);
+            out.writeInt(limit);
+        }, ShardProtocol::readStudents);
+    }
+    
+    @Override
+    public boolean updateStudent(int id, Student updatedStudent) {
+        return call(ShardProtocol.Op.REPLACE, out -> {
+            out.writeInt(id);
+            StudentLog.writeStudent(out, updatedStudent);
+        }, DataInputStream::readBoolean);
+    }
+    
+    @Override
+    public boolean updateStudent(int id, UnaryOperator<Student> modifier) {
+        return replace(id, modifier) == BatchResult.Outcome.UPDATED;
+    }
+    
+    // One optimistic read-modify-write: UPDATED, NOT_FOUND, or SKIPPED when
+    // the modifier returns null
+    private BatchResult.Outcome replace(int id, UnaryOperator<Student> modifier) {
+        while (true) {
+            Optional<Student> current = getStudentById(id);
+            if (!current.isPresent()) {
+                return BatchResult.Outcome.NOT_FOUND;
+            }
+            byte[] expected = ShardProtocol.encode(current.get());
+            Student updatedStudent = modifier.apply(current.get());
+            if (updatedStudent == null) {
+                return BatchResult.Outcome.SKIPPED;
+            }
+            byte outcome = call(ShardProtocol.Op.REPLACE_IF, out -> {
+                out.writeInt(id);
+                out.writeInt(expected.length);
+                out.write(expected);
+                StudentLog.writeStudent(out, updatedStudent);
+            }, DataInputStream::readByte);
+            if (outcome == ShardProtocol.REPLACED) {
+                return BatchResult.Outcome.UPDATED;
+            }
+            if (outcome == ShardProtocol.ABSENT) {
+                return BatchResult.Outcome.NOT_FOUND;
+            }
+        }
+    }
+    
+    @Override
+    public boolean deleteStudent(int id) {
+        return call(ShardProtocol.Op.DELETE, out -> out.writeInt(id), DataInputStream::readBoolean);
+    }
+    
+    @Override
+    public BatchResult updateStudents(Collection<Integer> ids, UnaryOperator<Student> modifier) {
+        BatchResult result = new BatchResult();
+        for (int id : ids) {
+            try {
+                result.record(id, replace(id, modifier));
+            } catch (IllegalArgumentException e) {
+                // The only write the server rejects is a taken email
+                result.record(id, BatchResult.Outcome.DUPLICATE);
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public BatchResult deleteStudents(Collection<Integer> ids) {
+        return call(ShardProtocol.Op.DELETE_BATCH, out -> ShardProtocol.writeIds(out, ids), ShardProtocol::readBatch);
+    }
+    
+    /** Students whose ring positions fall in the given ranges, filtered on the server. */
+    List<Student> getStudentsInRanges(int[] ranges) {
+        return call(ShardProtocol.Op.IN_RANGES, out -> ShardProtocol.writeRanges(out, ranges),
+                ShardProtocol::readStudents);
+    }
+    
+    /** Asks the server to save its data and exit. */
+    void shutdownServer() {
+        call(ShardProtocol.Op.SHUTDOWN, out -> { }, in -> null);
+    }
+    
+    /** Closes this client's connections; the server keeps running. */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (idle) {
+            for (Connection connection : idle) {
+                connection.close();
+            }
+            idle.clear();
+        }
+    }
+    
+    private <T> T call(ShardProtocol.Op op, Request request, Response<T> response) {
+        Connection connection = borrow();
+        boolean released = false;
+        try {
+            connection.out.writeByte(op.ordinal());
+            request.write(connection.out);
+            connection.out.flush();
+            byte status = connection.in.readByte();
+            if (status == ShardProtocol.OK) {
+                T result = response.read(connection.in);
+                released = true;
+                release(connection);
+                return result;
+            }
+            String message = connection.in.readUTF();
+            released = true;
+            release(connection);
+            if (status == ShardProtocol.REJECTED) {
+                throw new IllegalArgumentException(message);
+            }
+            throw new UncheckedIOException(new IOException("Shard " + address + " failed: " + message));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Shard " + address + " unreachable", e);
+        } finally {
+            // Any other way out leaves the exchange half done, so the
+            // connection can't be reused
+            if (!released) {
+                connection.close();
+            }
+        }
+    }
+    
+    private Connection borrow() {
+        synchronized (idle) {
+            Connection connection = idle.pollLast();
+            if (connection != null) {
+                return connection;
+            }
+        }
+        if (closed) {
+            throw new IllegalStateException("Shard client is closed");
+        }
+        try {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            return new Connection(socket);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Shard " + address + " unreachable", e);
+        }
+    }
+    
+    private void release(Connection connection) {
+        synchronized (idle) {
+            if (!closed && idle.size() < MAX_IDLE_CONNECTIONS) {
+                idle.addLast(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+}
+
+/**
+ * Splits students by ID across shards with consistent hashing. Each shard
+ * owns VIRTUAL_NODES points on a 32-bit ring, and a student lives on the
+ * shard owning the first point at or after the hash of its ID. Point
+ * reads and writes go straight to that shard; department, search, ranked
+ * and statistics queries fan out to every shard in parallel and merge the
+ * answers (lists by ID or rank, averages weighted by shard size).
+ *
+ * Shards are normally RemoteStudentStores, each a ShardServer in its own
+ * JVM (see launchLocal), but any StudentStore will do. A shard's place on
+ * the ring depends only on its position in the shard list, so a store
+ * must be reopened with its shards in the same order. addShard moves just
+ * the key ranges the new shard takes over, copying each student before
+ * deleting it from its old shard; it holds the topology write lock the
+ * whole time, so other calls wait until the rebalance is done.
+ *
+ * IDs are generated here, not by the shards. Email uniqueness is checked
+ * across shards for single-student writes, and adds and replacements of
+ * the same email are serialized, but batch writes only check it within
+ * each shard.
+ */
+class ShardedStudentStore implements StudentStore {
+    static final int VIRTUAL_NODES = 64;
+    private static final int EMAIL_LOCK_STRIPES = 64;
+    private static final int TOKEN_SALT = 0x5bd1e995;
+    
+    private static final Comparator<Student> BY_ID = Comparator.comparingInt(Student::getStudentId);
+    private static final Comparator<Student> BY_GPA =
+            Comparator.comparingDouble(Student::getGpa).thenComparingInt(Student::getStudentId);
+    private static final Comparator<Student> BY_ENROLLMENT =
+            Comparator.comparing(Student::getEnrollmentDate, Comparator.nullsFirst(Comparator.<LocalDate>naturalOrder()))
+                    .thenComparingInt(Student::getStudentId);
+    
+    private final ReentrantReadWriteLock topology = new ReentrantReadWriteLock();
+    private final ReentrantLock[] emailLocks = new ReentrantLock[EMAIL_LOCK_STRIPES];
+    private final ExecutorService fanOutPool;
+    private final AtomicInteger nextId;
+    // Guarded by topology: ring token -> index into shards
+    private List<StudentStore> shards = new ArrayList<>();
+    private TreeMap<Integer, Integer> ring = new TreeMap<>();
+    // Set when this store launched its own shard processes
+    private final List<Process> processes;
+    private final Path dataDirectory;
+    
+    ShardedStudentStore(List<? extends StudentStore> shards) {
+        this(shards, new ArrayList<>(), null);
+    }
+    
+    private ShardedStudentStore(List<? extends StudentStore> shards, List<Process> processes, Path dataDirectory) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.processes = processes;
+        this.dataDirectory = dataDirectory;
+        for (int i = 0; i < EMAIL_LOCK_STRIPES; i++) {
+            emailLocks[i] = new ReentrantLock();
+        }
+        this.fanOutPool = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "shard-fan-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (StudentStore shard : shards) {
+            placeTokens(ring, this.shards.size());
+            this.shards.add(shard);
+        }
+        int highest = 1;
+        for (int first : fanOut(shard -> shard.reserveIds(0))) {
+            highest = Math.max(highest, first);
+        }
+        this.nextId = new AtomicInteger(highest);
+    }
+    
+    /**
+     * Starts {@code count} ShardServer JVMs on loopback ports, with shard i
+     * persisted under {@code dataDirectory/shard-i} (in memory if the
+     * directory is null), and returns a store over them that shuts them
+     * down on close. Like a single repository, a store that comes up
+     * empty gets the sample data.
+     */
+    static ShardedStudentStore launchLocal(int count, Path dataDirectory) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        List<Process> processes = new ArrayList<>();
+        List<RemoteStudentStore> shards = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                processes.add(startShardProcess(dataDirectory, i));
+            }
+            for (Process process : processes) {
+                shards.add(connect(process));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+            throw e;
+        }
+        ShardedStudentStore store = new ShardedStudentStore(shards, processes, dataDirectory);
+        if (store.getTotalStudents() == 0) {
+            for (Student student : StudentRepository.sampleStudents()) {
+                store.addStudent(student);
+            }
+        }
+        return store;
+    }
+    
+    private static Process startShardProcess(Path dataDirectory, int index) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardServer.class.getName());
+        command.add("0");
+        if (dataDirectory != null) {
+            command.add(dataDirectory.resolve("shard-" + index).toString());
+        }
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+    
+    private static RemoteStudentStore connect(Process process) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith("LISTENING ")) {
+            throw new IOException("Shard process failed to start: " + line);
+        }
+        int port = Integer.parseInt(line.substring("LISTENING ".length()).trim());
+        return new RemoteStudentStore(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+    
+    int getShardCount() {
+        topology.readLock().lock();
+        try {
+            return shards.size();
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+    
+    /** Students held by each shard, in shard order. */
+    List<Integer> getShardSizes() {
+        return fanOut(StudentStore::getTotalStudents);
+    }
+    
+    /**
+     * Launches one more ShardServer JVM, next to the others, and adds it
+     * with {@link #addShard}. Only for stores created by launchLocal.
+     */
+    int addLocalShard() throws IOException {
+        if (processes.isEmpty()) {
+            throw new IllegalStateException("Shard processes were not launched by this store");
+        }
+        Process process = startShardProcess(dataDirectory, getShardCount());
+        RemoteStudentStore shard;
+        try {
+            shard = connect(process);
+        } catch (IOException | RuntimeException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+        synchronized (processes) {
+            processes.add(process);
+        }
+        return addShard(shard);
+    }
+    
+    /**
+     * Adds an empty shard and moves to it the students in the key ranges
+     * its ring points take over, returning how many moved. Every other
+     * call waits until the move is done. If it fails partway the moved
+     * students may exist on both shards, but none is lost.
+     */
+    int addShard(StudentStore shard) {
+        topology.writeLock().lock();
+        try {
+            if (shard.getTotalStudents() != 0) {
+                throw new IllegalArgumentException("A new shard must start empty");
+            }
+            TreeMap<Integer, Integer> newRing = new TreeMap<>(ring);
+            List<Integer> tokens = placeTokens(newRing, shards.size());
+            int[] ranges = new int[tokens.size() * 2];
+            for (int i = 0; i < tokens.size(); i++) {
+                int token = tokens.get(i);
+                Integer start = newRing.lowerKey(token);
+                ranges[2 * i] = start != null ? start : newRing.lastKey();
+                ranges[2 * i + 1] = token;
+            }
+            List<List<Student>> moving = fanOut(owner -> studentsInRanges(owner, ranges));
+            int moved = 0;
+            for (int i = 0; i < moving.size(); i++) {
+                List<Student> students = moving.get(i);
+                if (students.isEmpty()) {
+                    continue;
+                }
+                BatchResult copied = shard.addStudents(students);
+                if (copied.count(BatchResult.Outcome.CREATED) != students.size()) {
+                    throw new IllegalStateException("Rebalance could not copy students: " + copied);
+                }
+                List<Integer> ids = new ArrayList<>(students.size());
+                for (Student student : students) {
+                    ids.add(student.getStudentId());
+                }
+                shards.get(i).deleteStudents(ids);
+                moved += students.size();
+            }
+            List<StudentStore> newShards = new ArrayList<>(shards);
+            newShards.add(shard);
+            shards = newShards;
+            ring = newRing;
+            return moved;
+        } finally {
+            topology.writeLock().unlock();
+        }
+    }
+    
+    private static List<Student> studentsInRanges(StudentStore shard, int[] ranges) {
+        if (shard instanceof RemoteStudentStore) {
+            return ((RemoteStudentStore) shard).getStudentsInRanges(ranges);
+        }
+        List<Student> matching = new ArrayList<>();
+        for (Student student : shard.getAllStudents()) {
+            if (ShardProtocol.inRanges(ShardProtocol.ringHash(student.getStudentId()), ranges)) {
+                matching.add(student);
+            }
+        }
+        return matching;
+    }
+    
+    // Tokens depend only on the shard's index, skipping any already taken
+    private static List<Integer> placeTokens(TreeMap<Integer, Integer> ring, int index) {
+        List<Integer> tokens = new ArrayList<>(VIRTUAL_NODES);
+        for (int seed = 0; tokens.size() < VIRTUAL_NODES; seed++) {
+            int token = ShardProtocol.ringHash((index << 16 | seed) ^ TOKEN_SALT);
+            if (ring.putIfAbsent(token, index) == null) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+    
+    // Caller holds the topology lock
+    private int ownerIndex(int id) {
+        Map.Entry<Integer, Integer> point = ring.ceilingEntry(ShardProtocol.ringHash(id));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+    
+    private <T> T onOwner(int id, Function<StudentStore, T> call) {
+        topology.readLock().lock();
+        try {
+            return call.apply(shards.get(ownerIndex(id)));
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+    
+    /** Runs the query on every shard in parallel; results are in shard order. */
+    private <T> List<T> fanOut(Function<StudentStore, T> query) {
+        topology.readLock().lock();
+        try {
+            List<Callable<T>> tasks = new ArrayList<>(shards.size());
+            for (StudentStore shard : shards) {
+                tasks.add(() -> query.apply(shard));
+            }
+            return runAll(tasks);
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+    
+    // The calling thread runs the last task itself
+    private <T> List<T> runAll(List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (int i = 0; i < tasks.size() - 1; i++) {
+            futures.add(fanOutPool.submit(tasks.get(i)));
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        T last;
+        try {
+            last = tasks.get(tasks.size() - 1).call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        for (Future<T> future : futures) {
+            results.add(await(future));
+        }
+        results.add(last);
+        return results;
+    }
+    
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a shard", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+    
+    // Groups the IDs by owning shard and runs the batch on each in parallel,
+    // then reports outcomes in the caller's order
+    private <E> BatchResult batchByOwner(Collection<E> items, ToIntFunction<E> idOf,
+            BiFunction<StudentStore, List<E>, BatchResult> batch) {
+        topology.readLock().lock();
+        try {
+            Map<Integer, List<E>> byShard = new TreeMap<>();
+            for (E item : items) {
+                byShard.computeIfAbsent(ownerIndex(idOf.applyAsInt(item)), shard -> new ArrayList<>()).add(item);
+            }
+            if (byShard.isEmpty()) {
+                return new BatchResult();
+            }
+            List<Callable<BatchResult>> tasks = new ArrayList<>(byShard.size());
+            for (Map.Entry<Integer, List<E>> entry : byShard.entrySet()) {
+                StudentStore shard = shards.get(entry.getKey());
+                tasks.add(() -> batch.apply(shard, entry.getValue()));
+            }
+            Map<Integer, BatchResult.Outcome> outcomes = new HashMap<>();
+            for (BatchResult partial : runAll(tasks)) {
+                outcomes.putAll(partial.getOutcomes());
+            }
+            BatchResult result = new BatchResult();
+            for (E item : items) {
+                int id = idOf.applyAsInt(item);
+                BatchResult.Outcome outcome = outcomes.get(id);
+                if (outcome != null) {
+                    result.record(id, outcome);
+                }
+            }
+            return result;
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+    
+    private ReentrantLock emailLock(String email) {
+        String key = email == null ? "" : email.trim().toLowerCase(Locale.ROOT);
+        return emailLocks[(key.hashCode() & 0x7fffffff) % EMAIL_LOCK_STRIPES];
+    }
+    
+    private void checkEmailFree(int id, String email) {
+        if (email == null || email.trim().isEmpty()) {
+            return;
+        }
+        for (Optional<Student> holder : fanOut(shard -> shard.getStudentByEmail(email))) {
+            if (holder.isPresent() && holder.get().getStudentId() != id) {
+                throw new IllegalArgumentException("Email already registered: " + email);
+            }
+        }
+    }
+    
+    @Override
+    public Student addStudent(Student student) {
+        if (student.getStudentId() <= 0) {
+            student.setStudentId(nextId.getAndIncrement());
+        } else {
+            nextId.accumulateAndGet(student.getStudentId() + 1, Math::max);
+        }
+        ReentrantLock lock = emailLock(student.getEmail());
+        lock.lock();
+        try {
+            checkEmailFree(student.getStudentId(), student.getEmail());
+            return onOwner(student.getStudentId(), shard -> shard.addStudent(student));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public int reserveIds(int count) {
+        return nextId.getAndAdd(count);
+    }
+    
+    @Override
+    public BatchResult addStudents(List<Student> students) {
+        for (Student student : students) {
+            nextId.accumulateAndGet(student.getStudentId() + 1, Math::max);
+        }
+        return batchByOwner(students, Student::getStudentId, StudentStore::addStudents);
+    }
+    
+    @Override
+    public List<Student> getAllStudents() {
+        List<Student> students = new ArrayList<>();
+        for (List<Student> part : fanOut(StudentStore::getAllStudents)) {
+            students.addAll(part);
+        }
+        return students;
+    }
+    
+    @Override
+    public List<Student> getStudentsAfter(int afterId, int limit) {
+        return merge(fanOut(shard -> shard.getStudentsAfter(afterId, limit)), BY_ID, 0, limit);
+    }
+    
+    @Override
+    public Optional<Student> getStudentById(int id) {
+        return onOwner(id, shard -> shard.getStudentById(id));
+    }
+    
+    @Override
+    public Optional<Student> getStudentByEmail(String email) {
+        for (Optional<Student> holder : fanOut(shard -> shard.getStudentByEmail(email))) {
+            if (holder.isPresent()) {
+                return holder;
+            }
+        }
+        return Optional.empty();
+    }
+    
+    @Override
+    public boolean studentExists(int id) {
+        return onOwner(id, shard -> shard.studentExists(id));
+    }
+    
+    @Override
+    public List<Student> getStudentsByDepartment(String department) {
+        return merge(fanOut(shard -> shard.getStudentsByDepartment(department)), BY_ID, 0, Integer.MAX_VALUE);
+    }
+    
+    @Override
+    public int getDepartmentSize(String department) {
+        int size = 0;
+        for (int shardSize : fanOut(shard -> shard.getDepartmentSize(department))) {
+            size += shardSize;
+        }
+        return size;
+    }
+    
+    @Override
+    public double getDepartmentAverageGpa(String department) {
+        return weightedAverage(fanOut(shard -> new double[] {
+                shard.getDepartmentSize(department), shard.getDepartmentAverageGpa(department)}));
+    }
+    
+    @Override
+    public double getAverageGpa() {
+        return weightedAverage(fanOut(shard -> new double[] {shard.getTotalStudents(), shard.getAverageGpa()}));
+    }
+    
+    private static double weightedAverage(List<double[]> sizesAndAverages) {
+        double count = 0;
+        double sum = 0;
+        for (double[] part : sizesAndAverages) {
+            count += part[0];
+            sum += part[0] * part[1];
+        }
+        return count == 0 ? 0.0 : sum / count;
+    }
+    
+    // Empty shards report 0.0, so they are left out of the extremes
+    @Override
+    public double getMinGpa() {
+        double min = Double.NaN;
+        for (Double gpa : fanOut(shard -> shard.getTotalStudents() == 0 ? null : shard.getMinGpa())) {
+            if (gpa != null && !(gpa >= min)) {
+                min = gpa;
+            }
+        }
+        return Double.isNaN(min) ? 0.0 : min;
+    }
+    
+    @Override
+    public double getMaxGpa() {
+        double max = Double.NaN;
+        for (Double gpa : fanOut(shard -> shard.getTotalStudents() == 0 ? null : shard.getMaxGpa())) {
+            if (gpa != null && !(gpa <= max)) {
+                max = gpa;
+            }
+        }
+        return Double.isNaN(max) ? 0.0 : max;
+    }
+    
+    // Each shard returns its own first `limit`, which is enough to pick the
+    // global first `limit` from
+    @Override
+    public List<Student> getStudentsByGpaRange(double min, double max, int limit) {
+        return merge(fanOut(shard -> shard.getStudentsByGpaRange(min, max, limit)), BY_GPA, 0, limit);
+    }
+    
+    @Override
+    public List<Student> getTopStudentsByGpa(int n) {
+        return merge(fanOut(shard -> shard.getTopStudentsByGpa(n)), BY_GPA.reversed(), 0, n);
+    }
+    
+    @Override
+    public List<Student> getBottomStudentsByGpa(int n) {
+        return merge(fanOut(shard -> shard.getBottomStudentsByGpa(n)), BY_GPA, 0, n);
+    }
+    
+    @Override
+    public List<Student> getStudentsEnrolledBetween(LocalDate from, LocalDate to, int limit) {
+        return merge(fanOut(shard -> shard.getStudentsEnrolledBetween(from, to, limit)), BY_ENROLLMENT, 0, limit);
+    }
+    
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery) {
+        return searchStudentsByName(nameQuery, 0, Integer.MAX_VALUE);
+    }
+    
+    // A global page can draw on any shard's first offset + limit matches
+    @Override
+    public List<Student> searchStudentsByName(String nameQuery, int offset, int limit) {
+        int perShard = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        return merge(fanOut(shard -> shard.searchStudentsByName(nameQuery, 0, perShard)), BY_ID, offset, limit);
+    }
+    
+    private static List<Student> merge(List<List<Student>> parts, Comparator<Student> order, int offset, int limit) {
+        List<Student> all = new ArrayList<>();
+        for (List<Student> part : parts) {
+            all.addAll(part);
+        }
+        all.sort(order);
+        int from = Math.min(offset, all.size());
+        int to = (int) Math.min(all.size(), (long) from + limit);
+        return new ArrayList<>(all.subList(from, to));
+    }
+    
+    @Override
+    public boolean updateStudent(int id, Student updatedStudent) {
+        ReentrantLock lock = emailLock(updatedStudent.getEmail());
+        lock.lock();
+        try {
+            checkEmailFree(id, updatedStudent.getEmail());
+            return onOwner(id, shard -> shard.updateStudent(id, updatedStudent));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // The new email isn't known until the modifier runs, so this check is
+    // not serialized with other writes of the same email
+    @Override
+    public boolean updateStudent(int id, UnaryOperator<Student> modifier) {
+        return onOwner(id, shard -> shard.updateStudent(id, current -> {
+            Student updatedStudent = modifier.apply(current);
+            if (updatedStudent != null && !sameEmail(current, updatedStudent)) {
+                checkEmailFree(id, updatedStudent.getEmail());
+            }
+            return updatedStudent;
+        }));
+    }
+    
+    private static boolean sameEmail(Student a, Student b) {
+        return a.getEmail() == null ? b.getEmail() == null : a.getEmail().equalsIgnoreCase(b.getEmail());
+    }
+    
+    @Override
+    public boolean deleteStudent(int id) {
+        return onOwner(id, shard -> shard.deleteStudent(id));
+    }
+    
+    @Override
+    public BatchResult updateStudents(Collection<Integer> ids, UnaryOperator<Student> modifier) {
+        return batchByOwner(ids, Integer::intValue, (shard, shardIds) -> shard.updateStudents(shardIds, modifier));
+    }
+    
+    @Override
+    public BatchResult deleteStudents(Collection<Integer> ids) {
+        return batchByOwner(ids, Integer::intValue, StudentStore::deleteStudents);
+    }
+    
+    @Override
+    public int getTotalStudents() {
+        int total = 0;
+        for (int size : getShardSizes()) {
+            total += size;
+        }
+        return total;
+    }
+    
+    // Merged case-insensitively, keeping the first spelling seen, as one
+    // repository's department index does
+    @Override
+    public List<String> getAllDepartments() {
+        TreeMap<String, String> departments = new TreeMap<>();
+        for (List<String> names : fanOut(StudentStore::getAllDepartments)) {
+            for (String name : names) {
+                departments.putIfAbsent(name.toLowerCase(Locale.ROOT), name);
+            }
+        }
+        return new ArrayList<>(departments.values());
+    }
+    
+    /** Closes every shard; shard processes this store launched are asked to save and exit. */
+    @Override
+    public void close() throws IOException {
+        topology.writeLock().lock();
+        try {
+            IOException failure = null;
+            for (StudentStore shard : shards) {
+                try {
+                    if (!processes.isEmpty() && shard instanceof RemoteStudentStore) {
+                        ((RemoteStudentStore) shard).shutdownServer();
+                    }
+                    shard.close();
+                } catch (IOException e) {
+                    failure = e;
+                } catch (UncheckedIOException e) {
+                    failure = e.getCause();
+                }
+            }
+            synchronized (processes) {
+                for (Process process : processes) {
+                    try {
+                        if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                            process.destroyForcibly();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        process.destroyForcibly();
+                    }
+                }
+            }
+            fanOutPool.shutdown();
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            topology.writeLock().unlock();
+        }
+    }
+}
+
+/**
+ * Per-operation call counters and latency histograms for StudentService.
+ * Recording is lock-free: counts go to LongAdders and latencies to an
+ * HdrHistogram-style log-linear bucket array (8 sub-buckets per power of
+ * two, so quantiles are within 12.5%) updated with atomic increments.
+ */
+class ServiceMetrics {
+    enum Operation { CREATE, GET, SEARCH, UPDATE, DELETE, STATS }
+    
+    static class LatencySnapshot {
+        final long count;
+        final long failures;
+        final double meanNanos;
+        final long p50Nanos;
+        final long p90Nanos;
+        final long p99Nanos;
+        final long p999Nanos;
+        final long maxNanos;
+        
+        LatencySnapshot(long count, long failures, double meanNanos, long p50Nanos, long p90Nanos,
+                        long p99Nanos, long p999Nanos, long maxNanos) {
+            this.count = count;
+            this.failures = failures;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+            this.maxNanos = maxNanos;
+        }
+    }
+    
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    
+    private static class Recorder {
+        final LongAdder count = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    }
+    
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    
+    ServiceMetrics() {
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new Recorder());
+        }
+    }
+    
+    /**
+     * Records one call that started at {@code startNanos} (a System.nanoTime
+     * reading) and ends now.
+     */
+    void record(Operation operation, long startNanos, boolean failed) {
+        long nanos = Math.max(0, System.nanoTime() - startNanos);
+        Recorder recorder = recorders.get(operation);
+        recorder.count.increment();
+        if (failed) {
+            recorder.failures.increment();
+        }
+        recorder.totalNanos.add(nanos);
+        recorder.maxNanos.accumulate(nanos);
+        recorder.buckets.incrementAndGet(bucketIndex(nanos));
+    }
+    
+    /**
+     * Point-in-time view of every operation. Counters are read one by one,
+     * so under load a snapshot can be off by the calls recorded meanwhile.
+     */
+    Map<Operation, LatencySnapshot> snapshot() {
+        Map<Operation, LatencySnapshot> snapshot = new EnumMap<>(Operation.class);
+        for (Map.Entry<Operation, Recorder> entry : recorders.entrySet()) {
+            Recorder recorder = entry.getValue();
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = recorder.buckets.get(i);
+                total += counts[i];
+            }
+            long max = recorder.maxNanos.get();
+            snapshot.put(entry.getKey(), new LatencySnapshot(
+                    total,
+                    recorder.failures.sum(),
+                    total == 0 ? 0.0 : (double) recorder.totalNanos.sum() / total,
+                    quantile(counts, total, 0.50, max),
+                    quantile(counts, total, 0.90, max),
+                    quantile(counts, total, 0.99, max),
+                    quantile(counts, total, 0.999, max),
+                    max));
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Renders the snapshot in the Prometheus text exposition format so a
+     * scraper can read it as is.
+     */
+    String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE student_service_calls_total counter\n");
+        text.append("# TYPE student_service_failures_total counter\n");
+        text.append("# TYPE student_service_latency_seconds summary\n");
+        for (Map.Entry<Operation, LatencySnapshot> entry : snapshot().entrySet()) {
+            String op = entry.getKey().name().toLowerCase(Locale.ROOT);
+            LatencySnapshot s = entry.getValue();
+            text.append("student_service_calls_total{op=\"").append(op).append("\"} ").append(s.count).append('\n');
+            text.append("student_service_failures_total{op=\"").append(op).append("\"} ").append(s.failures).append('\n');
+            appendQuantile(text, op, "0.5", s.p50Nanos);
+            appendQuantile(text, op, "0.9", s.p90Nanos);
+            appendQuantile(text, op, "0.99", s.p99Nanos);
+            appendQuantile(text, op, "0.999", s.p999Nanos);
+            text.append("student_service_latency_seconds_count{op=\"").append(op).append("\"} ")
+                    .append(s.count).append('\n');
+        }
+        return text.toString();
+    }
+    
+    private static void appendQuantile(StringBuilder text, String op, String quantile, long nanos) {
+        text.append("student_service_latency_seconds{op=\"").append(op).append("\",quantile=\"")
+                .append(quantile).append("\"} ").append(nanos / 1e9).append('\n');
+    }
+    
+    // Values below SUB_BUCKETS get a bucket each; above that, every power
+    // of two is split into SUB_BUCKETS equal slices
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+    
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+    
+    private static long quantile(long[] counts, long total, double quantile, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+}
+
+/**
+ * Group-by reports over the whole student body: GPA histograms per
+ * department, enrollments per month and GPA percentiles. The students are
+ * split into fixed-size segments that a fork-join pool aggregates in
+ * parallel into primitive counters; partial results are merged pairwise
+ * as the tasks join.
+ *
+ * Percentiles come from a GPA histogram with 0.01 resolution, which is
+ * exact for GPAs recorded to two decimal places.
+ */
+class StudentReportEngine {
+    static final double HISTOGRAM_BIN_WIDTH = 0.5;
+    // 0.0-0.5, 0.5-1.0, ... 3.5-4.0; a 4.0 lands in the top bin
+    static final int HISTOGRAM_BINS = 8;
+    private static final int PERCENTILE_BUCKETS = 401;
+    private static final int SEGMENT_SIZE = 16_384;
+    
+    static class DepartmentReport {
+        final String name;
+        final long students;
+        final double averageGpa;
+        final long[] histogram;
+        
+        DepartmentReport(String name, long students, double averageGpa, long[] histogram) {
+            this.name = name;
+            this.students = students;
+            this.averageGpa = averageGpa;
+            this.histogram = histogram;
+        }
+    }
+    
+    static class Report {
+        final long totalStudents;
+        final double averageGpa;
+        final List<DepartmentReport> departments;
+        final SortedMap<YearMonth, Long> enrollmentsByMonth;
+        final long withoutEnrollmentDate;
+        private final long[] gpaCounts;
+        
+        Report(long totalStudents, double averageGpa, List<DepartmentReport> departments,
+               SortedMap<YearMonth, Long> enrollmentsByMonth, long withoutEnrollmentDate, long[] gpaCounts) {
+            this.totalStudents = totalStudents;
+            this.averageGpa = averageGpa;
+            this.departments = departments;
+            this.enrollmentsByMonth = enrollmentsByMonth;
+            this.withoutEnrollmentDate = withoutEnrollmentDate;
+            this.gpaCounts = gpaCounts;
+        }
+        
+        /** Nearest-rank GPA percentile, e.g. 50 for the median. */
+        double gpaPercentile(double percentile) {
+            if (totalStudents == 0) {
+                return 0.0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalStudents));
+            long seen = 0;
+            for (int bucket = 0; bucket < gpaCounts.length; bucket++) {
+                seen += gpaCounts[bucket];
+                if (seen >= rank) {
+                    return bucket / 100.0;
+                }
+            }
+            return (gpaCounts.length - 1) / 100.0;
+        }
+    }
+    
+    private static class DepartmentCounts {
+        final String name;
+        long students;
+        double gpaSum;
+        final long[] histogram = new long[HISTOGRAM_BINS];
+        
+        DepartmentCounts(String name) {
+            this.name = name;
+        }
+        
+        void merge(DepartmentCounts other) {
+            students += other.students;
+            gpaSum += other.gpaSum;
+            for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+                histogram[bin] += other.histogram[bin];
+            }
+        }
+    }
+    
+    // Aggregates for one segment, and after merging for several
+    private static class Partial {
+        final Map<String, DepartmentCounts> departments = new HashMap<>();
+        final long[] gpaCounts = new long[PERCENTILE_BUCKETS];
+        long students;
+        double gpaSum;
+        // Enrollments per month; monthCounts[0] is firstMonth, in months since year 0
+        int firstMonth;
+        long[] monthCounts = new long[0];
+        long undated;
+        
+        void add(Student student) {
+            double gpa = Math.min(4.0, Math.max(0.0, student.getGpa()));
+            students++;
+            gpaSum += student.getGpa();
+            gpaCounts[(int) Math.round(gpa * 100)]++;
+            
+            String department = student.getDepartment();
+            DepartmentCounts counts = departments.computeIfAbsent(
+                    department == null ? "" : department.toLowerCase(Locale.ROOT),
+                    key -> new DepartmentCounts(department));
+            counts.students++;
+            counts.gpaSum += student.getGpa();
+            counts.histogram[Math.min(HISTOGRAM_BINS - 1, (int) (gpa / HISTOGRAM_BIN_WIDTH))]++;
+            
+            LocalDate enrolled = student.getEnrollmentDate();
+            if (enrolled == null) {
+                undated++;
+            } else {
+                addEnrollments(enrolled.getYear() * 12 + enrolled.getMonthValue() - 1, 1);
+            }
+        }
+        
+        void addEnrollments(int month, long count) {
+            if (monthCounts.length == 0) {
+                firstMonth = month;
+                monthCounts = new long[1];
+            } else if (month < firstMonth) {
+                long[] grown = new long[monthCounts.length + firstMonth - month];
+                System.arraycopy(monthCounts, 0, grown, firstMonth - month, monthCounts.length);
+                monthCounts = grown;
+                firstMonth = month;
+            } else if (month - firstMonth >= monthCounts.length) {
+                monthCounts = Arrays.copyOf(monthCounts, month - firstMonth + 1);
+            }
+            monthCounts[month - firstMonth] += count;
+        }
+        
+        Partial merge(Partial other) {
+            students += other.students;
+            gpaSum += other.gpaSum;
+            undated += other.undated;
+            for (int bucket = 0; bucket < PERCENTILE_BUCKETS; bucket++) {
+                gpaCounts[bucket] += other.gpaCounts[bucket];
+            }
+            for (int i = 0; i < other.monthCounts.length; i++) {
+                if (other.monthCounts[i] != 0) {
+                    addEnrollments(other.firstMonth + i, other.monthCounts[i]);
+                }
+            }
+            for (Map.Entry<String, DepartmentCounts> entry : other.departments.entrySet()) {
+                DepartmentCounts counts = departments.putIfAbsent(entry.getKey(), entry.getValue());
+                if (counts != null) {
+                    counts.merge(entry.getValue());
+                }
+            }
+            return this;
+        }
+        
+        Report toReport() {
+            List<String> keys = new ArrayList<>(departments.keySet());
+            Collections.sort(keys);
+            List<DepartmentReport> departmentReports = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                DepartmentCounts counts = departments.get(key);
+                departmentReports.add(new DepartmentReport(counts.name, counts.students,
+                        counts.gpaSum / counts.students, counts.histogram));
+            }
+            SortedMap<YearMonth, Long> byMonth = new TreeMap<>();
+            for (int i = 0; i < monthCounts.length; i++) {
+                if (monthCounts[i] != 0) {
+                    int month = firstMonth + i;
+                    byMonth.put(YearMonth.of(month / 12, month % 12 + 1), monthCounts[i]);
+                }
+            }
+            return new Report(students, students == 0 ? 0.0 : gpaSum / students, departmentReports,
+                    byMonth, undated, gpaCounts);
+        }
+    }
+    
+    private static class Segment extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        
+        private final Student[] students;
+        private final int from;
+        private final int to;
+        
+        Segment(Student[] students, int from, int to) {
+            this.students = students;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected Partial compute() {
+            if (to - from <= SEGMENT_SIZE) {
+                Partial partial = new Partial();
+                for (int i = from; i < to; i++) {
+                    partial.add(students[i]);
+                }
+                return partial;
+            }
+            int middle = (from + to) >>> 1;
+            Segment left = new Segment(students, from, middle);
+            left.fork();
+            Partial right = new Segment(students, middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+    
+    private final ForkJoinPool pool;
+    
+    StudentReportEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+    
+    StudentReportEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    Report run(StudentStore store) {
+        Student[] students = store.getAllStudents().toArray(new Student[0]);
+        return pool.invoke(new Segment(students, 0, students.length)).toReport();
+    }
+}
+
+/**
+ * A composite student query for StudentService.query: conditions ANDed
+ * together, optionally a free-form predicate, then sort, offset/limit and
+ * a projection. Conditions a store can answer from an index are kept as
+ * plain values rather than lambdas, so StudentQueryPlanner can pick which
+ * of them to drive the query with. Without an order the results come back
+ * in ID order.
+ *
+ * <pre>
+ * new StudentQuery().department("Computer Science").nameContains("smith").gpaAbove(3.0)
+ *         .orderByDescending(StudentQuery.Field.GPA).limit(20)
+ *         .select(StudentQuery.Field.ID, StudentQuery.Field.LAST_NAME, StudentQuery.Field.GPA)
+ * </pre>
+ */
+class StudentQuery {
+    enum Field {
+        ID("id"), FIRST_NAME("firstName"), LAST_NAME("lastName"), EMAIL("email"), PHONE("phone"),
+        DEPARTMENT("department"), ENROLLMENT_DATE("enrollmentDate"), GPA("gpa");
+        
+        final String label;
+        
+        Field(String label) {
+            this.label = label;
+        }
+        
+        Object get(Student student) {
+            switch (this) {
+                case ID:
+                    return student.getStudentId();
+                case FIRST_NAME:
+                    return student.getFirstName();
+                case LAST_NAME:
+                    return student.getLastName();
+                case EMAIL:
+                    return student.getEmail();
+                case PHONE:
+                    return student.getPhoneNumber();
+                case DEPARTMENT:
+                    return student.getDepartment();
+                case ENROLLMENT_DATE:
+                    return student.getEnrollmentDate();
+                default:
+                    return student.getGpa();
+            }
+        }
+        
+        // Text sorts case-insensitively; missing values sort first
+        Comparator<Student> ascending() {
+            switch (this) {
+                case ID:
+                    return Comparator.comparingInt(Student::getStudentId);
+                case GPA:
+                    return Comparator.comparingDouble(Student::getGpa);
+                case ENROLLMENT_DATE:
+                    return Comparator.comparing(Student::getEnrollmentDate,
+                            Comparator.nullsFirst(Comparator.<LocalDate>naturalOrder()));
+                default:
+                    return Comparator.comparing(student -> (String) get(student),
+                            Comparator.nullsFirst(String.CASE_INSENSITIVE_ORDER));
+            }
+        }
+    }
+    
+    static class Order {
+        final Field field;
+        final boolean descending;
+        
+        Order(Field field, boolean descending) {
+            this.field = field;
+            this.descending = descending;
+        }
+        
+        @Override
+        public String toString() {
+            return field.label + (descending ? " DESC" : " ASC");
+        }
+    }
+    
+    /** The matching students, their projected rows and the plan that found them. */
+    static class Result {
+        final List<Student> students;
+        final StudentQueryPlanner.Plan plan;
+        private final List<Field> projection;
+        
+        Result(List<Student> students, List<Field> projection, StudentQueryPlanner.Plan plan) {
+            this.students = students;
+            this.projection = projection;
+            this.plan = plan;
+        }
+        
+        /** Each student as selected field -> value, in selection order. */
+        List<Map<Field, Object>> rows() {
+            List<Field> fields = projection.isEmpty() ? Arrays.asList(Field.values()) : projection;
+            List<Map<Field, Object>> rows = new ArrayList<>(students.size());
+            for (Student student : students) {
+                Map<Field, Object> row = new LinkedHashMap<>();
+                for (Field field : fields) {
+                    row.put(field, field.get(student));
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+    
+    Integer id;
+    String email;
+    String department;
+    String nameContains;
+    double minGpa = Double.NEGATIVE_INFINITY;
+    boolean minGpaInclusive = true;
+    double maxGpa = Double.POSITIVE_INFINITY;
+    boolean maxGpaInclusive = true;
+    LocalDate enrolledFrom;
+    LocalDate enrolledTo;
+    final List<Predicate<Student>> predicates = new ArrayList<>();
+    final List<Order> order = new ArrayList<>();
+    final List<Field> projection = new ArrayList<>();
+    int offset;
+    int limit = Integer.MAX_VALUE;
+    
+    StudentQuery id(int id) {
+        this.id = id;
+        return this;
+    }
+    
+    /** Case-insensitive exact match. */
+    StudentQuery email(String email) {
+        this.email = requireText(email, "Email");
+        return this;
+    }
+    
+    /** Case-insensitive exact match. */
+    StudentQuery department(String department) {
+        this.department = requireText(department, "Department");
+        return this;
+    }
+    
+    /** Case-insensitive substring of "first last", as in searchStudentsByName. */
+    StudentQuery nameContains(String text) {
+        this.nameContains = requireText(text, "Name").toLowerCase(Locale.ROOT);
+        return this;
+    }
+    
+    StudentQuery gpaAtLeast(double gpa) {
+        return lowerGpa(gpa, true);
+    }
+    
+    StudentQuery gpaAbove(double gpa) {
+        return lowerGpa(gpa, false);
+    }
+    
+    StudentQuery gpaAtMost(double gpa) {
+        return upperGpa(gpa, true);
+    }
+    
+    StudentQuery gpaBelow(double gpa) {
+        return upperGpa(gpa, false);
+    }
+    
+    StudentQuery gpaBetween(double min, double max) {
+        return lowerGpa(min, true).upperGpa(max, true);
+    }
+    
+    /** Enrolled on or between the two dates. */
+    StudentQuery enrolledBetween(LocalDate from, LocalDate to) {
+        if (from == null || to == null || from.isAfter(to)) {
+            throw new IllegalArgumentException("Enrollment range must run from an earlier to a later date");
+        }
+        this.enrolledFrom = from;
+        this.enrolledTo = to;
+        return this;
+    }
+    
+    /** An extra condition no index can help with; checked in the final filter pass. */
+    StudentQuery matching(Predicate<Student> predicate) {
+        predicates.add(Objects.requireNonNull(predicate));
+        return this;
+    }
+    
+    StudentQuery orderBy(Field field) {
+        order.add(new Order(field, false));
+        return this;
+    }
+    
+    StudentQuery orderByDescending(Field field) {
+        order.add(new Order(field, true));
+        return this;
+    }
+    
+    StudentQuery offset(int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset cannot be negative");
+        }
+        this.offset = offset;
+        return this;
+    }
+    
+    StudentQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+    
+    /** The fields Result.rows() returns; all of them if never called. */
+    StudentQuery select(Field... fields) {
+        projection.addAll(Arrays.asList(fields));
+        return this;
+    }
+    
+    boolean hasGpaBounds() {
+        return minGpa != Double.NEGATIVE_INFINITY || maxGpa != Double.POSITIVE_INFINITY;
+    }
+    
+    private StudentQuery lowerGpa(double gpa, boolean inclusive) {
+        if (gpa > maxGpa) {
+            throw new IllegalArgumentException("Minimum GPA cannot exceed maximum GPA");
+        }
+        this.minGpa = gpa;
+        this.minGpaInclusive = inclusive;
+        return this;
+    }
+    
+    private StudentQuery upperGpa(double gpa, boolean inclusive) {
+        if (gpa < minGpa) {
+            throw new IllegalArgumentException("Minimum GPA cannot exceed maximum GPA");
+        }
+        this.maxGpa = gpa;
+        this.maxGpaInclusive = inclusive;
+        return this;
+    }
+    
+    private static String requireText(String value, String what) {
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException(what + " cannot be empty");
+        }
+        return value.trim();
+    }
+}
+
+/**
+ * Answers StudentQuery against a StudentStore. Planning picks one access
+ * path, the most selective the store can serve: ID or email lookup, the
+ * department index (whose size is known up front), then the GPA range,
+ * enrollment range and name trigram indexes, each probed with a row budget
+ * equal to the best candidate count so far, so a probe stops as soon as
+ * it can't win and the winning probe's rows are reused as the candidates.
+ * With no usable index it scans in ID order, or walks the GPA index when
+ * the query only wants the first few by GPA.
+ *
+ * Every other condition is compiled into one predicate, cheapest checks
+ * first, and applied in a single pass over the candidates that also does
+ * the sort (a bounded heap when there is a limit) and stops early when
+ * the candidates already arrive in the requested order.
+ *
+ * The returned Plan is the explain output: the path taken, the
+ * alternatives and their estimates, the residual filters, and row counts
+ * and timings from the run.
+ */
+class StudentQueryPlanner {
+    enum AccessPath {
+        ID_LOOKUP, EMAIL_LOOKUP, DEPARTMENT_INDEX, GPA_RANGE_INDEX, ENROLLMENT_RANGE_INDEX,
+        NAME_TRIGRAM_INDEX, GPA_ORDER_SCAN, FULL_SCAN
+    }
+    
+    private static final int SCAN_PAGE_SIZE = 1000;
+    // Names shorter than a trigram aren't served from the index
+    private static final int MIN_INDEXED_NAME = 3;
+    
+    // One residual condition and how the explain output shows it
+    private static class Filter {
+        final String description;
+        final Predicate<Student> test;
+        
+        Filter(String description, Predicate<Student> test) {
+            this.description = description;
+            this.test = test;
+        }
+    }
+    
+    static class Plan {
+        final AccessPath path;
+        final String accessCondition;
+        final long estimatedRows;
+        // Path -> estimate, or why it wasn't used, in the order considered
+        final Map<AccessPath, String> considered;
+        final List<Filter> filters;
+        final String sort;
+        long planNanos;
+        long executeNanos;
+        long rowsExamined;
+        long rowsMatched;
+        long rowsReturned;
+        boolean executed;
+        private final List<Student> candidates;
+        
+        Plan(AccessPath path, String accessCondition, long estimatedRows, Map<AccessPath, String> considered,
+             List<Filter> filters, String sort, List<Student> candidates) {
+            this.path = path;
+            this.accessCondition = accessCondition;
+            this.estimatedRows = estimatedRows;
+            this.considered = considered;
+            this.filters = filters;
+            this.sort = sort;
+            this.candidates = candidates;
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append("Access: ").append(path);
+            if (accessCondition != null) {
+                text.append(" [").append(accessCondition).append(']');
+            }
+            text.append(" (estimated ").append(estimatedRows).append(" rows)\n");
+            for (Map.Entry<AccessPath, String> option : considered.entrySet()) {
+                if (option.getKey() != path) {
+                    text.append("  rejected ").append(option.getKey()).append(": ").append(option.getValue()).append('\n');
+                }
+            }
+            List<String> conditions = new ArrayList<>();
+            for (Filter filter : filters) {
+                conditions.add(filter.description);
+            }
+            text.append("Filter: ").append(conditions.isEmpty() ? "none" : String.join(" AND ", conditions) + " (single pass)")
+                    .append('\n');
+            text.append("Sort: ").append(sort);
+            if (!executed) {
+                return text.append(String.format(Locale.ROOT, "\nPlanning: %.3f ms", planNanos / 1e6)).toString();
+            }
+            text.append('\n').append(String.format(Locale.ROOT,
+                    "Rows: examined %d, matched %d, returned %d; planning %.3f ms, execution %.3f ms",
+                    rowsExamined, rowsMatched, rowsReturned, planNanos / 1e6, executeNanos / 1e6));
+            return text.toString();
+        }
+    }
+    
+    private final StudentStore store;
+    
+    StudentQueryPlanner(StudentStore store) {
+        this.store = store;
+    }
+    
+    StudentQuery.Result execute(StudentQuery query) {
+        Plan plan = plan(query);
+        long start = System.nanoTime();
+        List<Student> students = run(query, plan);
+        plan.executeNanos = System.nanoTime() - start;
+        plan.rowsReturned = students.size();
+        plan.executed = true;
+        return new StudentQuery.Result(students, new ArrayList<>(query.projection), plan);
+    }
+    
+    Plan plan(StudentQuery query) {
+        long start = System.nanoTime();
+        Map<AccessPath, String> considered = new LinkedHashMap<>();
+        AccessPath best = AccessPath.FULL_SCAN;
+        String condition = null;
+        long estimate = store.getTotalStudents();
+        List<Student> candidates = null;
+        
+        if (query.id != null) {
+            best = AccessPath.ID_LOOKUP;
+            condition = "id = " + query.id;
+            estimate = 1;
+            considered.put(best, "1 row");
+        } else if (query.email != null) {
+            best = AccessPath.EMAIL_LOOKUP;
+            condition = "email = '" + query.email + "'";
+            estimate = 1;
+            considered.put(best, "1 row");
+        } else {
+            if (query.department != null) {
+                int size = store.getDepartmentSize(query.department);
+                considered.put(AccessPath.DEPARTMENT_INDEX, size + " rows");
+                if (size < estimate) {
+                    best = AccessPath.DEPARTMENT_INDEX;
+                    condition = "department = '" + query.department + "'";
+                    estimate = size;
+                }
+            }
+            // Each probe may return at most the current best estimate; one
+            // that returns fewer has an exact count and its rows are kept
+            if (query.hasGpaBounds()) {
+                List<Student> probe = store.getStudentsByGpaRange(query.minGpa, query.maxGpa, budget(estimate));
+                considered.put(AccessPath.GPA_RANGE_INDEX, describe(probe, estimate));
+                if (probe.size() < estimate) {
+                    best = AccessPath.GPA_RANGE_INDEX;
+                    condition = gpaCondition(query);
+                    estimate = probe.size();
+                    candidates = probe;
+                }
+            }
+            if (query.enrolledFrom != null) {
+                List<Student> probe = store.getStudentsEnrolledBetween(query.enrolledFrom, query.enrolledTo,
+                        budget(estimate));
+                considered.put(AccessPath.ENROLLMENT_RANGE_INDEX, describe(probe, estimate));
+                if (probe.size() < estimate) {
+                    best = AccessPath.ENROLLMENT_RANGE_INDEX;
+                    condition = "enrolled " + query.enrolledFrom + " to " + query.enrolledTo;
+                    estimate = probe.size();
+                    candidates = probe;
+                }
+            }
+            if (query.nameContains != null) {
+                if (query.nameContains.length() < MIN_INDEXED_NAME) {
+                    considered.put(AccessPath.NAME_TRIGRAM_INDEX, "term shorter than a trigram");
+                } else {
+                    List<Student> probe = store.searchStudentsByName(query.nameContains, 0, budget(estimate));
+                    considered.put(AccessPath.NAME_TRIGRAM_INDEX, describe(probe, estimate));
+                    if (probe.size() < estimate) {
+                        best = AccessPath.NAME_TRIGRAM_INDEX;
+                        condition = "name contains '" + query.nameContains + "'";
+                        estimate = probe.size();
+                        candidates = probe;
+                    }
+                }
+            }
+            // Walking the GPA index in the requested order beats a full scan
+            // when only the first few rows are wanted
+            if (best == AccessPath.FULL_SCAN && sortsByGpaFirst(query) && wanted(query) < estimate / 4) {
+                best = AccessPath.GPA_ORDER_SCAN;
+                condition = query.order.get(0).toString();
+                considered.put(best, "stops after " + wanted(query) + " matches");
+            }
+        }
+        considered.putIfAbsent(AccessPath.FULL_SCAN, store.getTotalStudents() + " rows");
+        
+        Plan plan = new Plan(best, condition, estimate, considered, residualFilters(query, best),
+                describeSort(query, best), candidates);
+        plan.planNanos = System.nanoTime() - start;
+        return plan;
+    }
+    
+    private static int budget(long estimate) {
+        return (int) Math.min(Integer.MAX_VALUE, estimate);
+    }
+    
+    private static String describe(List<Student> probe, long budget) {
+        return probe.size() < budget ? probe.size() + " rows" : "at least " + budget + " rows";
+    }
+    
+    private static long wanted(StudentQuery query) {
+        return Math.min(Integer.MAX_VALUE, (long) query.offset + query.limit);
+    }
+    
+    private static boolean sortsByGpaFirst(StudentQuery query) {
+        return !query.order.isEmpty() && query.order.get(0).field == StudentQuery.Field.GPA
+                && query.limit != Integer.MAX_VALUE;
+    }
+    
+    private static String gpaCondition(StudentQuery query) {
+        List<String> bounds = new ArrayList<>();
+        if (query.minGpa != Double.NEGATIVE_INFINITY) {
+            bounds.add("gpa " + (query.minGpaInclusive ? ">= " : "> ") + query.minGpa);
+        }
+        if (query.maxGpa != Double.POSITIVE_INFINITY) {
+            bounds.add("gpa " + (query.maxGpaInclusive ? "<= " : "< ") + query.maxGpa);
+        }
+        return String.join(" AND ", bounds);
+    }
+    
+    // The conditions the access path doesn't already guarantee, cheapest
+    // checks first since the filter stops at the first failure
+    private static List<Filter> residualFilters(StudentQuery query, AccessPath path) {
+        List<Filter> filters = new ArrayList<>();
+        if (query.id != null && path != AccessPath.ID_LOOKUP) {
+            int id = query.id;
+            filters.add(new Filter("id = " + id, student -> student.getStudentId() == id));
+        }
+        boolean exclusiveGpa = !query.minGpaInclusive || !query.maxGpaInclusive;
+        if (query.hasGpaBounds() && (path != AccessPath.GPA_RANGE_INDEX || exclusiveGpa)) {
+            double min = query.minGpa;
+            double max = query.maxGpa;
+            boolean minInclusive = query.minGpaInclusive;
+            boolean maxInclusive = query.maxGpaInclusive;
+            filters.add(new Filter(gpaCondition(query), student -> {
+                double gpa = student.getGpa();
+                return (minInclusive ? gpa >= min : gpa > min) && (maxInclusive ? gpa <= max : gpa < max);
+            }));
+        }
+        if (query.enrolledFrom != null && path != AccessPath.ENROLLMENT_RANGE_INDEX) {
+            LocalDate from = query.enrolledFrom;
+            LocalDate to = query.enrolledTo;
+            filters.add(new Filter("enrolled " + from + " to " + to, student -> student.getEnrollmentDate() != null
+                    && !student.getEnrollmentDate().isBefore(from) && !student.getEnrollmentDate().isAfter(to)));
+        }
+        if (query.department != null && path != AccessPath.DEPARTMENT_INDEX) {
+            String department = query.department;
+            filters.add(new Filter("department = '" + department + "'",
+                    student -> department.equalsIgnoreCase(student.getDepartment())));
+        }
+        if (query.email != null && path != AccessPath.EMAIL_LOOKUP) {
+            String email = query.email;
+            filters.add(new Filter("email = '" + email + "'",
+                    student -> student.getEmail() != null && email.equalsIgnoreCase(student.getEmail().trim())));
+        }
+        if (query.nameContains != null && path != AccessPath.NAME_TRIGRAM_INDEX) {
+            String name = query.nameContains;
+            filters.add(new Filter("name contains '" + name + "'",
+                    student -> student.getFullName().toLowerCase(Locale.ROOT).contains(name)));
+        }
+        for (int i = 0; i < query.predicates.size(); i++) {
+            filters.add(new Filter("predicate #" + (i + 1), query.predicates.get(i)));
+        }
+        return filters;
+    }
+    
+    // All residual filters fused into one predicate over a flat array
+    private static Predicate<Student> fuse(List<Filter> filters) {
+        if (filters.isEmpty()) {
+            return student -> true;
+        }
+        Predicate<Student>[] chain = newPredicateArray(filters.size());
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = filters.get(i).test;
+        }
+        return student -> {
+            for (Predicate<Student> check : chain) {
+                if (!check.test(student)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Predicate<Student>[] newPredicateArray(int size) {
+        return (Predicate<Student>[]) new Predicate<?>[size];
+    }
+    
+    private static Comparator<Student> comparator(StudentQuery query) {
+        Comparator<Student> comparator = null;
+        for (StudentQuery.Order order : query.order) {
+            Comparator<Student> next = order.descending ? order.field.ascending().reversed() : order.field.ascending();
+            comparator = comparator == null ? next : comparator.thenComparing(next);
+        }
+        Comparator<Student> byId = StudentQuery.Field.ID.ascending();
+        return comparator == null ? byId : comparator.thenComparing(byId);
+    }
+    
+    // True when candidates arrive already in result order, so the pass can
+    // stop once it has offset + limit matches
+    private static boolean arrivesInOrder(StudentQuery query, AccessPath path) {
+        return (path == AccessPath.FULL_SCAN || path == AccessPath.NAME_TRIGRAM_INDEX) && query.order.isEmpty();
+    }
+    
+    private static String describeSort(StudentQuery query, AccessPath path) {
+        String keys = query.order.isEmpty() ? "id ASC" : query.order.toString().replaceAll("[\\[\\]]", "");
+        String offset = query.offset > 0 ? ", skip " + query.offset : "";
+        if (arrivesInOrder(query, path)) {
+            return keys + " (index order" + (query.limit == Integer.MAX_VALUE ? "" : ", stops after "
+                    + wanted(query) + " matches") + offset + ")";
+        }
+        if (query.limit != Integer.MAX_VALUE) {
+            return keys + " (top-" + wanted(query) + " heap" + offset + ")";
+        }
+        return keys + " (in memory" + offset + ")";
+    }
+    
+    private List<Student> run(StudentQuery query, Plan plan) {
+        Predicate<Student> filter = fuse(plan.filters);
+        Comparator<Student> order = comparator(query);
+        int wanted = (int) wanted(query);
+        boolean inOrder = arrivesInOrder(query, plan.path);
+        boolean bounded = query.limit != Integer.MAX_VALUE;
+        // Top-N keeps the worst of the best at the head so it can be evicted
+        PriorityQueue<Student> top = bounded && !inOrder ? new PriorityQueue<>(order.reversed()) : null;
+        List<Student> matched = new ArrayList<>();
+        
+        Consumer<Student> sink = student -> {
+            plan.rowsExamined++;
+            if (!filter.test(student)) {
+                return;
+            }
+            plan.rowsMatched++;
+            if (top == null) {
+                matched.add(student);
+            } else if (top.size() < wanted) {
+                top.add(student);
+            } else if (wanted > 0 && order.compare(student, top.peek()) < 0) {
+                top.poll();
+                top.add(student);
+            }
+        };
+        BooleanSupplier enough = () -> inOrder && bounded && plan.rowsMatched >= wanted;
+        
+        switch (plan.path) {
+            case ID_LOOKUP:
+                store.getStudentById(query.id).ifPresent(sink);
+                break;
+            case EMAIL_LOOKUP:
+                store.getStudentByEmail(query.email).ifPresent(sink);
+                break;
+            case DEPARTMENT_INDEX:
+                store.getStudentsByDepartment(query.department).forEach(sink);
+                break;
+            case GPA_ORDER_SCAN:
+                scanByGpa(query, filter, sink, wanted);
+                break;
+            case FULL_SCAN: {
+                List<Student> page = store.getStudentsAfter(0, SCAN_PAGE_SIZE);
+                while (!page.isEmpty()) {
+                    for (Student student : page) {
+                        sink.accept(student);
+                        if (enough.getAsBoolean()) {
+                            break;
+                        }
+                    }
+                    if (enough.getAsBoolean() || page.size() < SCAN_PAGE_SIZE) {
+                        break;
+                    }
+                    page = store.getStudentsAfter(page.get(page.size() - 1).getStudentId(), SCAN_PAGE_SIZE);
+                }
+                break;
+            }
+            default:
+                for (Student student : plan.candidates) {
+                    sink.accept(student);
+                    if (enough.getAsBoolean()) {
+                        break;
+                    }
+                }
+        }
+        
+        List<Student> sorted = top != null ? new ArrayList<>(top) : matched;
+        if (!inOrder) {
+            sorted.sort(order);
+        }
+        int from = Math.min(query.offset, sorted.size());
+        int to = (int) Math.min(sorted.size(), (long) from + query.limit);
+        return new ArrayList<>(sorted.subList(from, to));
+    }
+    
+    // Fetches ever larger prefixes of the GPA order until enough of them
+    // pass the filter or the index runs out; only the last prefix is fed
+    // to the sink, so no student is counted twice
+    private void scanByGpa(StudentQuery query, Predicate<Student> filter, Consumer<Student> sink, int wanted) {
+        boolean descending = query.order.get(0).descending;
+        int fetch = Math.max(64, wanted * 2);
+        while (true) {
+            List<Student> prefix = descending ? store.getTopStudentsByGpa(fetch) : store.getBottomStudentsByGpa(fetch);
+            int passing = 0;
+            for (Student student : prefix) {
+                if (filter.test(student)) {
+                    passing++;
+                }
+            }
+            // Ties on GPA at the cut may sort differently on later keys, so
+            // only a prefix whose last GPA is strictly past the cut is final
+            boolean exhausted = prefix.size() < fetch;
+            if (exhausted || (passing >= wanted && lastGpaDiffers(prefix, wanted, filter))) {
+                prefix.forEach(sink);
+                return;
+            }
+            fetch = (int) Math.min(Integer.MAX_VALUE, fetch * 4L);
+        }
+    }
+    
+    // Whether the prefix ends on a GPA past the one the wanted-th match has
+    private static boolean lastGpaDiffers(List<Student> prefix, int wanted, Predicate<Student> filter) {
+        if (wanted == 0) {
+            return true;
+        }
+        int seen = 0;
+        for (Student student : prefix) {
+            if (filter.test(student) && ++seen == wanted) {
+                return student.getGpa() != prefix.get(prefix.size() - 1).getGpa();
+            }
+        }
+        return false;
+    }
+}
+
+class StudentService {
+    private static final int STREAM_PAGE_SIZE = 1000;
+    
+    private StudentStore repository;
+    private final ServiceMetrics metrics = new ServiceMetrics();
+    private final StudentReportEngine reportEngine = new StudentReportEngine();
+    private AsyncStudentService asyncService;
+    
+    public StudentService() {
+        this(new StudentRepository());
+    }
+    
+    public StudentService(StudentStore repository) {
+        this.repository = repository;
+    }
+    
+    public Student createStudent(String firstName, String lastName, String email, 
+                               String phone, String department) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            validateStudentData(firstName, lastName, email, phone, department);
+            
+            Student student = new Student(0, firstName, lastName, email, phone, department);
+            Student created = repository.addStudent(student);
+            failed = false;
+            return created;
+        } finally {
+            metrics.record(ServiceMetrics.Operation.CREATE, start, failed);
+        }
+    }
+    
+    public List<Student> getAllStudents() {
+        return repository.getAllStudents();
+    }
+    
+    public List<Student> getStudentPage(int afterId, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        return repository.getStudentsAfter(afterId, pageSize);
+    }
+    
+    /**
+     * Walks all students in ID order one page at a time, so memory use
+     * stays constant and the first rows are available immediately.
+     */
+    public Iterator<Student> iterateStudents() {
+        return new Iterator<Student>() {
+            private List<Student> page = repository.getStudentsAfter(0, STREAM_PAGE_SIZE);
+            private int index;
+            
+            @Override
+            public boolean hasNext() {
+                if (index < page.size()) {
+                    return true;
+                }
+                if (page.size() < STREAM_PAGE_SIZE) {
+                    return false;
+                }
+                int lastId = page.get(page.size() - 1).getStudentId();
+                page = repository.getStudentsAfter(lastId, STREAM_PAGE_SIZE);
+                index = 0;
+                return !page.isEmpty();
+            }
+            
+            @Override
+            public Student next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.get(index++);
+            }
+        };
+    }
+    
+    public Stream<Student> streamStudents() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterateStudents(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+    
+    public Student getStudentById(int id) {
+        long start = System.nanoTime();
+        Optional<Student> student = repository.getStudentById(id);
+        metrics.record(ServiceMetrics.Operation.GET, start, false);
+        return student.orElse(null);
+    }
+    
+    // Hash lookup on the email index, cheap enough for every login
+    public Student getStudentByEmail(String email) {
+        long start = System.nanoTime();
+        Optional<Student> student = repository.getStudentByEmail(email);
+        metrics.record(ServiceMetrics.Operation.GET, start, false);
+        return student.orElse(null);
+    }
+    
+    public List<Student> findStudentsByDepartment(String department) {
+        long start = System.nanoTime();
+        List<Student> students = repository.getStudentsByDepartment(department);
+        metrics.record(ServiceMetrics.Operation.SEARCH, start, false);
+        return students;
+    }
+    
+    public List<Student> searchStudents(String searchTerm) {
+        return searchStudents(searchTerm, 0, Integer.MAX_VALUE);
+    }
+    
+    public List<Student> searchStudents(String searchTerm, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit cannot be negative");
+        }
+        long start = System.nanoTime();
+        List<Student> students = repository.searchStudentsByName(searchTerm, offset, limit);
+        metrics.record(ServiceMetrics.Operation.SEARCH, start, false);
+        return students;
+    }
+    
+    public boolean updateStudent(int id, String firstName, String lastName, 
+                               String email, String phone, String department, double gpa) {
+        long start = System.nanoTime();
+        boolean updated = false;
+        try {
+            // One store call: the modifier only runs if the student exists,
+            // and the store itself rejects an email another student holds
+            updated = repository.updateStudent(id, existingStudent -> {
+                validateFields(firstName, lastName, email, department);
+                Student updatedStudent = new Student(id, firstName, lastName, email, phone, department);
+                updatedStudent.setGpa(gpa);
+                updatedStudent.setEnrollmentDate(existingStudent.getEnrollmentDate());
+                return updatedStudent;
+            });
+            return updated;
+        } finally {
+            metrics.record(ServiceMetrics.Operation.UPDATE, start, !updated);
+        }
+    }
+    
+    public boolean updateStudentGpa(int id, double gpa) {
+        long start = System.nanoTime();
+        boolean updated = repository.updateStudent(id, existingStudent -> {
+            Student updatedStudent = new Student(existingStudent);
+            updatedStudent.setGpa(gpa);
+            return updatedStudent;
+        });
+        metrics.record(ServiceMetrics.Operation.UPDATE, start, !updated);
+        return updated;
+    }
+    
+    public boolean deleteStudent(int id) {
+        long start = System.nanoTime();
+        boolean deleted = repository.deleteStudent(id);
+        metrics.record(ServiceMetrics.Operation.DELETE, start, !deleted);
+        return deleted;
+    }
+    
+    /**
+     * Runs a composite query. The planner drives it from the most
+     * selective index it can use and filters the rest in one pass; the
+     * result's plan says which path it took and how many rows it read.
+     */
+    public StudentQuery.Result query(StudentQuery query) {
+        long start = System.nanoTime();
+        StudentQuery.Result result = new StudentQueryPlanner(repository).execute(query);
+        metrics.record(ServiceMetrics.Operation.SEARCH, start, false);
+        return result;
+    }
+    
+    /** The plan query() would choose, with estimates but without running it. */
+    public StudentQueryPlanner.Plan explain(StudentQuery query) {
+        return new StudentQueryPlanner(repository).plan(query);
+    }
+    
+    public List<Student> findStudentsByGpaRange(double minGpa, double maxGpa) {
+        if (minGpa > maxGpa) {
+            throw new IllegalArgumentException("Minimum GPA cannot exceed maximum GPA");
+        }
+        long start = System.nanoTime();
+        List<Student> students = repository.getStudentsByGpaRange(minGpa, maxGpa, Integer.MAX_VALUE);
+        metrics.record(ServiceMetrics.Operation.SEARCH, start, false);
+        return students;
+    }
+    
+    public List<Student> getTopStudents(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Count cannot be negative");
+        }
+        long start = System.nanoTime();
+        List<Student> students = repository.getTopStudentsByGpa(n);
+        metrics.record(ServiceMetrics.Operation.SEARCH, start, false);
+        return students;
+    }
+    
+    public List<Student> getBottomStudents(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Count cannot be negative");
+        }
+        long start = System.nanoTime();
+        List<Student> students = repository.getBottomStudentsByGpa(n);
+        metrics.record(ServiceMetrics.Operation.SEARCH, start, false);
+        return students;
+    }
+    
+    public List<Student> findStudentsEnrolledBetween(LocalDate from, LocalDate to) {
+        if (from == null || to == null || from.isAfter(to)) {
+            throw new IllegalArgumentException("Enrollment range must run from an earlier to a later date");
+        }
+        long start = System.nanoTime();
+        List<Student> students = repository.getStudentsEnrolledBetween(from, to, Integer.MAX_VALUE);
+        metrics.record(ServiceMetrics.Operation.SEARCH, start, false);
+        return students;
+    }
+    
+    // GPA of 3.5 and above
+    public List<Student> getDeansList() {
+        return findStudentsByGpaRange(3.5, 4.0);
+    }
+    
+    // GPA below 2.0
+    public List<Student> getProbationList() {
+        return findStudentsByGpaRange(0.0, Math.nextDown(2.0));
+    }
+    
+    /**
+     * Posts many GPAs at once, e.g. at the end of term. GPAs outside
+     * 0.0 - 4.0 are reported as INVALID and not applied.
+     */
+    public BatchResult updateGpas(Map<Integer, Double> gpaById) {
+        long start = System.nanoTime();
+        List<Integer> validIds = new ArrayList<>(gpaById.size());
+        List<Integer> invalidIds = new ArrayList<>();
+        for (Map.Entry<Integer, Double> entry : gpaById.entrySet()) {
+            Double gpa = entry.getValue();
+            if (gpa != null && gpa >= 0.0 && gpa <= 4.0) {
+                validIds.add(entry.getKey());
+            } else {
+                invalidIds.add(entry.getKey());
+            }
+        }
+        BatchResult result = repository.updateStudents(validIds, existingStudent -> {
+            Student updatedStudent = new Student(existingStudent);
+            updatedStudent.setGpa(gpaById.get(existingStudent.getStudentId()));
+            return updatedStudent;
+        });
+        for (int id : invalidIds) {
+            result.record(id, BatchResult.Outcome.INVALID);
+        }
+        metrics.record(ServiceMetrics.Operation.UPDATE, start, false);
+        return result;
+    }
+    
+    /**
+     * Applies {@code modifier} to every student in the department. The
+     * modifier gets a copy it may edit in place. Students who moved out of
+     * the department before their turn came are SKIPPED; results that fail
+     * validation or have a GPA outside 0.0 - 4.0 are INVALID and not applied.
+     */
+    public BatchResult updateStudentsInDepartment(String department, UnaryOperator<Student> modifier) {
+        long start = System.nanoTime();
+        List<Integer> ids = new ArrayList<>();
+        for (Student student : repository.getStudentsByDepartment(department)) {
+            ids.add(student.getStudentId());
+        }
+        List<Integer> invalidIds = new ArrayList<>();
+        BatchResult result = repository.updateStudents(ids, existingStudent -> {
+            if (!department.equalsIgnoreCase(existingStudent.getDepartment())) {
+                return null;
+            }
+            Student updatedStudent = modifier.apply(new Student(existingStudent));
+            if (updatedStudent == null) {
+                return null;
+            }
+            try {
+                validateStudentData(existingStudent.getStudentId(), updatedStudent.getFirstName(),
+                        updatedStudent.getLastName(), updatedStudent.getEmail(), updatedStudent.getPhoneNumber(),
+                        updatedStudent.getDepartment());
+            } catch (IllegalArgumentException e) {
+                invalidIds.add(existingStudent.getStudentId());
+                return null;
+            }
+            if (!(updatedStudent.getGpa() >= 0.0 && updatedStudent.getGpa() <= 4.0)) {
+                invalidIds.add(existingStudent.getStudentId());
+                return null;
+            }
+            return updatedStudent;
+        });
+        for (int id : invalidIds) {
+            result.record(id, BatchResult.Outcome.INVALID);
+        }
+        metrics.record(ServiceMetrics.Operation.UPDATE, start, false);
+        return result;
+    }
+    
+    public BatchResult deleteStudents(Collection<Integer> ids) {
+        long start = System.nanoTime();
+        BatchResult result = repository.deleteStudents(ids);
+        metrics.record(ServiceMetrics.Operation.DELETE, start, false);
+        return result;
+    }
+    
+    // Group commits of already validated writes, for AsyncStudentService
+    BatchResult addStudents(List<Student> students) {
+        long start = System.nanoTime();
+        BatchResult result = repository.addStudents(students);
+        metrics.record(ServiceMetrics.Operation.CREATE, start, false);
+        return result;
+    }
+    
+    BatchResult updateStudents(Collection<Integer> ids, UnaryOperator<Student> modifier) {
+        long start = System.nanoTime();
+        BatchResult result = repository.updateStudents(ids, modifier);
+        metrics.record(ServiceMetrics.Operation.UPDATE, start, false);
+        return result;
+    }
+    
+    public int getTotalStudentCount() {
+        long start = System.nanoTime();
+        int count = repository.getTotalStudents();
+        metrics.record(ServiceMetrics.Operation.STATS, start, false);
+        return count;
+    }
+    
+    public List<String> getAvailableDepartments() {
+        long start = System.nanoTime();
+        List<String> departments = repository.getAllDepartments();
+        metrics.record(ServiceMetrics.Operation.STATS, start, false);
+        return departments;
+    }
+    
+    public int countStudentsByDepartment(String department) {
+        long start = System.nanoTime();
+        int count = repository.getDepartmentSize(department);
+        metrics.record(ServiceMetrics.Operation.STATS, start, false);
+        return count;
+    }
+    
+    public Map<ServiceMetrics.Operation, ServiceMetrics.LatencySnapshot> getMetricsSnapshot() {
+        return metrics.snapshot();
+    }
+    
+    public String getMetricsText() {
+        return metrics.toPrometheusText();
+    }
+    
+    public StudentImporter.ImportResult importStudents(Path file) throws IOException {
+        return new StudentImporter(this, repository).importFile(file);
+    }
+    
+    /**
+     * Runs a script of headless commands (see StudentBatchRunner), writing
+     * one result line per command.
+     */
+    public StudentBatchRunner.Summary runBatch(BufferedReader commands, Writer results) throws IOException {
+        return new StudentBatchRunner(this, repository).run(commands, results);
+    }
+    
+    /** Exports every student in ID order as CSV, or TSV for a .tsv file. */
+    public long exportStudents(Path file) throws IOException {
+        return new StudentExporter(StudentExporter.formatFor(file)).export(iterateStudents(), file);
+    }
+    
+    /**
+     * The non-blocking facade over this service, created on first use.
+     * Its queued writes are applied before shutdown() closes the store.
+     */
+    public synchronized AsyncStudentService async() {
+        if (asyncService == null) {
+            asyncService = new AsyncStudentService(this, repository);
+        }
+        return asyncService;
+    }
+    
+    public void shutdown() {
+        AsyncStudentService pending;
+        synchronized (this) {
+            pending = asyncService;
+        }
+        if (pending != null) {
+            pending.close();
+        }
+        try {
+            repository.close();
+        } catch (IOException e) {
+            System.err.println("Failed to save student data: " + e.getMessage());
+        }
+    }
+    
+    public double getAverageGpa() {
+        long start = System.nanoTime();
+        double average = repository.getAverageGpa();
+        metrics.record(ServiceMetrics.Operation.STATS, start, false);
+        return average;
+    }
+    
+    public double getLowestGpa() {
+        long start = System.nanoTime();
+        double lowest = repository.getMinGpa();
+        metrics.record(ServiceMetrics.Operation.STATS, start, false);
+        return lowest;
+    }
+    
+    public double getHighestGpa() {
+        long start = System.nanoTime();
+        double highest = repository.getMaxGpa();
+        metrics.record(ServiceMetrics.Operation.STATS, start, false);
+        return highest;
+    }
+    
+    /**
+     * Department GPA histograms, enrollments per month and GPA
+     * percentiles, computed in one parallel pass over all students.
+     */
+    public StudentReportEngine.Report generateReport() {
+        long start = System.nanoTime();
+        StudentReportEngine.Report report = reportEngine.run(repository);
+        metrics.record(ServiceMetrics.Operation.STATS, start, false);
+        return report;
+    }
+    
+    public double getDepartmentAverageGpa(String department) {
+        long start = System.nanoTime();
+        double average = repository.getDepartmentAverageGpa(department);
+        metrics.record(ServiceMetrics.Operation.STATS, start, false);
+        return average;
+    }
+    
+    void validateStudentData(String firstName, String lastName, String email, 
+                                   String phone, String department) {
+        validateStudentData(0, firstName, lastName, email, phone, department);
+    }
+    
+    /**
+     * Validates fields for the student with the given ID (0 for a new one).
+     * The email check is an early, friendlier failure; the store enforces
+     * uniqueness atomically when the write happens.
+     */
+    void validateStudentData(int studentId, String firstName, String lastName, String email,
+                             String phone, String department) {
+        validateFields(firstName, lastName, email, department);
+        Optional<Student> owner = repository.getStudentByEmail(email);
+        if (owner.isPresent() && owner.get().getStudentId() != studentId) {
+            throw new IllegalArgumentException("Email already registered: " + email);
+        }
+    }
+    
+    /** The checks that need no store lookup. */
+    static void validateFields(String firstName, String lastName, String email, String department) {
+        if (firstName == null || firstName.trim().isEmpty()) {
+            throw new IllegalArgumentException("First name cannot be empty");
+        }
+        if (lastName == null || lastName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Last name cannot be empty");
+        }
+        if (email == null || !email.contains("@")) {
+            throw new IllegalArgumentException("Valid email is required");
+        }
+        if (department == null || department.trim().isEmpty()) {
+            throw new IllegalArgumentException("Department cannot be empty");
+        }
+    }
+}
+
+/**
+ * Non-blocking front end to StudentService for callers that must not
+ * block, such as event loops. Every method returns at once with a
+ * CompletableFuture. The only work done on the caller's thread is input
+ * validation and a queue offer. Futures are completed on the facade's own
+ * threads, so heavy continuations should use the *Async variants.
+ *
+ * Reads run on a daemon pool. Concurrent gets of the same ID share one
+ * lookup, so a storm of reads of a hot student costs one fetch.
+ *
+ * Writes join one FIFO queue, drained by a single writer thread. Each
+ * pass takes what is queued and applies runs of same-kind writes with
+ * one batched store call, so a durable store syncs its log once per run.
+ * Under load, writes queue up behind the running commit and are applied
+ * together in the next one. At low load a write is applied as soon as it
+ * arrives, with no added wait. A run never holds two writes to the same
+ * student, two claims on one email, or a claim on an email that a later
+ * write in the run gives up, so it has the same outcome as applying its
+ * writes one by one in queue order.
+ *
+ * A read sees every write whose future completed before the read was
+ * issued.
+ */
+class AsyncStudentService implements Closeable {
+    private static final int MAX_RUN = 1024;
+    
+    private enum Kind {
+        CREATE(false), UPDATE(true), GPA(true), DELETE(false);
+        
+        // UPDATE and GPA both go through one updateStudents call
+        final boolean modifies;
+        
+        Kind(boolean modifies) {
+            this.modifies = modifies;
+        }
+        
+        boolean sameRun(Kind other) {
+            return this == other || (modifies && other.modifies);
+        }
+    }
+    
+    private static class Write {
+        final Kind kind;
+        final int id;
+        final Student student;
+        final double gpa;
+        final IllegalArgumentException invalid;
+        final CompletableFuture<Student> created;
+        final CompletableFuture<Boolean> applied;
+        
+        Write(Kind kind, int id, Student student, double gpa, IllegalArgumentException invalid) {
+            this.kind = kind;
+            this.id = id;
+            this.student = student;
+            this.gpa = gpa;
+            this.invalid = invalid;
+            this.created = kind == Kind.CREATE ? new CompletableFuture<>() : null;
+            this.applied = kind == Kind.CREATE ? null : new CompletableFuture<>();
+        }
+        
+        // The email this write takes, or null
+        String claimedEmail() {
+            if (student == null || invalid != null) {
+                return null;
+            }
+            return student.getEmail().trim().toLowerCase(Locale.ROOT);
+        }
+        
+        void fail(Throwable error) {
+            if (created != null) {
+                created.completeExceptionally(error);
+            } else {
+                applied.completeExceptionally(error);
+            }
+        }
+    }
+    
+    private final StudentService service;
+    private final StudentStore repository;
+    private final ExecutorService readers;
+    private final ExecutorService writer;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Student>> inFlightReads = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Write> writes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final LongAdder coalescedReads = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private volatile boolean closed;
+    
+    AsyncStudentService(StudentService service, StudentStore repository) {
+        this.service = service;
+        this.repository = repository;
+        this.readers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "student-async-read");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "student-async-write");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /** The student, or null if there is none. Joins a lookup of the same ID already running. */
+    public CompletableFuture<Student> getStudentById(int id) {
+        CompletableFuture<Student> fetch = inFlightReads.get(id);
+        if (fetch == null) {
+            CompletableFuture<Student> started = new CompletableFuture<>();
+            fetch = inFlightReads.putIfAbsent(id, started);
+            if (fetch == null) {
+                read(started, () -> {
+                    try {
+                        return service.getStudentById(id);
+                    } finally {
+                        // Leave before completing, so later reads start a fresh lookup
+                        inFlightReads.remove(id, started);
+                    }
+                }, () -> inFlightReads.remove(id, started));
+                return started.thenApply(Function.identity());
+            }
+        }
+        coalescedReads.increment();
+        // Each caller gets its own future; cancelling it leaves the shared lookup alone
+        return fetch.thenApply(Function.identity());
+    }
+    
+    public CompletableFuture<Student> getStudentByEmail(String email) {
+        return call(target -> target.getStudentByEmail(email));
+    }
+    
+    public CompletableFuture<List<Student>> searchStudents(String searchTerm, int offset, int limit) {
+        return call(target -> target.searchStudents(searchTerm, offset, limit));
+    }
+    
+    public CompletableFuture<List<Student>> findStudentsByDepartment(String department) {
+        return call(target -> target.findStudentsByDepartment(department));
+    }
+    
+    public CompletableFuture<StudentQuery.Result> query(StudentQuery query) {
+        return call(target -> target.query(query));
+    }
+    
+    /** Runs any other read against the service on the read pool. */
+    public <T> CompletableFuture<T> call(Function<StudentService, T> read) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        read(result, () -> read.apply(service), () -> { });
+        return result;
+    }
+    
+    /**
+     * Completes with the created student, or fails with
+     * IllegalArgumentException for bad fields or an email already taken.
+     */
+    public CompletableFuture<Student> createStudent(String firstName, String lastName, String email,
+                                                    String phone, String department) {
+        try {
+            StudentService.validateFields(firstName, lastName, email, department);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Write write = new Write(Kind.CREATE, 0, new Student(0, firstName, lastName, email, phone, department), 0.0,
+                null);
+        enqueue(write);
+        return write.created;
+    }
+    
+    /**
+     * As StudentService.updateStudent: completes with false if there is
+     * no such student, and fails with IllegalArgumentException for bad
+     * fields or an email another student holds.
+     */
+    public CompletableFuture<Boolean> updateStudent(int id, String firstName, String lastName, String email,
+                                                    String phone, String department, double gpa) {
+        IllegalArgumentException invalid = null;
+        try {
+            StudentService.validateFields(firstName, lastName, email, department);
+        } catch (IllegalArgumentException e) {
+            // Reported only if the student exists, as the synchronous call does
+            invalid = e;
+        }
+        Student replacement = invalid != null ? null : new Student(id, firstName, lastName, email, phone, department);
+        if (replacement != null) {
+            replacement.setGpa(gpa);
+        }
+        Write write = new Write(Kind.UPDATE, id, replacement, gpa, invalid);
+        enqueue(write);
+        return write.applied;
+    }
+    
+    public CompletableFuture<Boolean> updateStudentGpa(int id, double gpa) {
+        Write write = new Write(Kind.GPA, id, null, gpa, null);
+        enqueue(write);
+        return write.applied;
+    }
+    
+    public CompletableFuture<Boolean> deleteStudent(int id) {
+        Write write = new Write(Kind.DELETE, id, null, 0.0, null);
+        enqueue(write);
+        return write.applied;
+    }
+    
+    /** Gets that joined a lookup already running instead of starting one. */
+    public long getCoalescedReads() {
+        return coalescedReads.sum();
+    }
+    
+    /** Batched store calls made for queued writes. */
+    public long getWriteCommits() {
+        return commits.sum();
+    }
+    
+    /** Stops taking new calls, applies the writes already queued and waits for them. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        writer.shutdown();
+        readers.shutdown();
+        // The queue must have a single consumer, so wait out the writer
+        // even if interrupted
+        boolean interrupted = false;
+        while (!writer.isTerminated()) {
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // Writes queued after the writer's last pass, which could not
+        // schedule another one on the shut-down executor
+        applyQueued();
+    }
+    
+    private <T> void read(CompletableFuture<T> result, Callable<T> lookup, Runnable abandon) {
+        if (closed) {
+            abandon.run();
+            result.completeExceptionally(new IllegalStateException("Service is shut down"));
+            return;
+        }
+        try {
+            readers.execute(() -> {
+                try {
+                    result.complete(lookup.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            abandon.run();
+            result.completeExceptionally(new IllegalStateException("Service is shut down"));
+        }
+    }
+    
+    private void enqueue(Write write) {
+        if (closed) {
+            write.fail(new IllegalStateException("Service is shut down"));
+            return;
+        }
+        writes.add(write);
+        // Raced with close(): if nothing has taken the write yet, close()
+        // may already be past its last pass, so reject it here
+        if (closed && writes.remove(write)) {
+            write.fail(new IllegalStateException("Service is shut down"));
+            return;
+        }
+        scheduleDrain();
+    }
+    
+    // At most one drain is scheduled or running at a time
+    private void scheduleDrain() {
+        if (!writes.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Shutting down: close() applies what is left
+                draining.set(false);
+            }
+        }
+    }
+    
+    private void drain() {
+        try {
+            applyQueued();
+        } finally {
+            draining.set(false);
+        }
+        scheduleDrain();
+    }
+    
+    // Takes everything queued and applies it run by run. Only one thread
+    // at a time: the writer, or close() once the writer has stopped
+    private void applyQueued() {
+        List<Write> run = new ArrayList<>();
+        Set<Integer> runIds = new HashSet<>();
+        Set<String> runEmails = new HashSet<>();
+        Write write;
+        while ((write = writes.poll()) != null) {
+            if (!run.isEmpty() && !fitsRun(run, runIds, runEmails, write)) {
+                apply(run);
+                run.clear();
+                runIds.clear();
+                runEmails.clear();
+            }
+            run.add(write);
+            if (write.kind != Kind.CREATE) {
+                runIds.add(write.id);
+            }
+            String email = write.claimedEmail();
+            if (email != null) {
+                runEmails.add(email);
+            }
+        }
+        if (!run.isEmpty()) {
+            apply(run);
+        }
+    }
+    
+    // Whether the write can join the run without changing its outcome
+    private boolean fitsRun(List<Write> run, Set<Integer> runIds, Set<String> runEmails, Write write) {
+        if (run.size() >= MAX_RUN || !run.get(0).kind.sameRun(write.kind)) {
+            return false;
+        }
+        if (write.kind != Kind.CREATE && runIds.contains(write.id)) {
+            return false;
+        }
+        String email = write.claimedEmail();
+        if (email == null) {
+            return true;
+        }
+        if (runEmails.contains(email)) {
+            return false;
+        }
+        // The student gives up an email claimed earlier in the run; the
+        // batched update may apply this write first and let that claim win
+        if (write.kind == Kind.UPDATE) {
+            Optional<Student> current = repository.getStudentById(write.id);
+            if (current.isPresent() && current.get().getEmail() != null
+                    && runEmails.contains(current.get().getEmail().trim().toLowerCase(Locale.ROOT))) {
+                return false;
+            }
+        }
+        // Held by a student the run changes: it may be released earlier in the run
+        Optional<Student> holder = repository.getStudentByEmail(email);
+        return !(holder.isPresent() && runIds.contains(holder.get().getStudentId()));
+    }
+    
+    private void apply(List<Write> run) {
+        commits.increment();
+        try {
+            switch (run.get(0).kind) {
+                case CREATE:
+                    applyCreates(run);
+                    break;
+                case DELETE:
+                    applyDeletes(run);
+                    break;
+                default:
+                    applyModifications(run);
+            }
+        } catch (RuntimeException e) {
+            // Part of the run may have been applied, so cached lookups go too
+            for (Write write : run) {
+                inFlightReads.remove(write.kind == Kind.CREATE ? write.student.getStudentId() : write.id);
+                write.fail(e);
+            }
+        }
+    }
+    
+    private void applyCreates(List<Write> run) {
+        int firstId = repository.reserveIds(run.size());
+        List<Student> students = new ArrayList<>(run.size());
+        for (int i = 0; i < run.size(); i++) {
+            Student student = run.get(i).student;
+            student.setStudentId(firstId + i);
+            students.add(student);
+        }
+        BatchResult result = service.addStudents(students);
+        for (Write write : run) {
+            inFlightReads.remove(write.student.getStudentId());
+        }
+        for (Write write : run) {
+            if (result.getOutcomes().get(write.student.getStudentId()) == BatchResult.Outcome.CREATED) {
+                write.created.complete(write.student);
+            } else {
+                write.created.completeExceptionally(
+                        new IllegalArgumentException("Email already registered: " + write.student.getEmail()));
+            }
+        }
+    }
+    
+    private void applyDeletes(List<Write> run) {
+        List<Integer> ids = new ArrayList<>(run.size());
+        for (Write write : run) {
+            ids.add(write.id);
+        }
+        BatchResult result = service.deleteStudents(ids);
+        for (Write write : run) {
+            inFlightReads.remove(write.id);
+        }
+        for (Write write : run) {
+            write.applied.complete(result.getOutcomes().get(write.id) == BatchResult.Outcome.DELETED);
+        }
+    }
+    
+    private void applyModifications(List<Write> run) {
+        Map<Integer, Write> byId = new LinkedHashMap<>();
+        for (Write write : run) {
+            byId.put(write.id, write);
+        }
+        // The email each write tried to keep or take; a GPA write carries
+        // none, but can still meet a duplicate left by data written before
+        // emails were unique
+        Map<Integer, String> emails = new HashMap<>();
+        BatchResult result = service.updateStudents(byId.keySet(), existing -> {
+            Write write = byId.get(existing.getStudentId());
+            if (write.invalid != null) {
+                return null;
+            }
+            Student updatedStudent;
+            if (write.kind == Kind.UPDATE) {
+                updatedStudent = new Student(write.student);
+                updatedStudent.setEnrollmentDate(existing.getEnrollmentDate());
+            } else {
+                updatedStudent = new Student(existing);
+                updatedStudent.setGpa(write.gpa);
+            }
+            emails.put(existing.getStudentId(), updatedStudent.getEmail());
+            return updatedStudent;
+        });
+        for (Write write : run) {
+            inFlightReads.remove(write.id);
+        }
+        for (Write write : run) {
+            BatchResult.Outcome outcome = result.getOutcomes().get(write.id);
+            if (outcome == BatchResult.Outcome.UPDATED) {
+                write.applied.complete(true);
+            } else if (outcome == BatchResult.Outcome.SKIPPED) {
+                write.applied.completeExceptionally(write.invalid);
+            } else if (outcome == BatchResult.Outcome.DUPLICATE) {
+                write.applied.completeExceptionally(
+                        new IllegalArgumentException("Email already registered: " + emails.get(write.id)));
+            } else {
+                write.applied.complete(false);
+            }
+        }
+    }
+}
+
+/**
+ * Streaming bulk loader for student files. Lines are read sequentially
+ * and handed to worker threads in fixed-size chunks; each worker parses
+ * and validates its chunk. Chunks are committed in file order, each with
+ * one ID-range reservation and one batched repository insert. Bad rows
+ * are reported with their line number and do not stop the load.
+ *
+ * CSV files need a header row naming the columns (firstName, lastName,
+ * email, phone, department and optionally gpa, in any order); quoted
+ * fields may not span lines. JSON files hold one flat object per line
+ * with the same keys.
+ */
+class StudentImporter {
+    enum Format { CSV, JSON_LINES }
+    
+    static class RowError {
+        final long line;
+        final String message;
+        
+        RowError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+        
+        @Override
+        public String toString() {
+            return "line " + line + ": " + message;
+        }
+    }
+    
+    static class ImportResult {
+        final long imported;
+        final long failed;
+        final List<RowError> errors;
+        final long elapsedNanos;
+        
+        ImportResult(long imported, long failed, List<RowError> errors, long elapsedNanos) {
+            this.imported = imported;
+            this.failed = failed;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : (imported + failed) * 1e9 / elapsedNanos;
+        }
+    }
+    
+    private static class Chunk {
+        final List<Student> students = new ArrayList<>();
+        // Source line of each entry in students
+        final List<Long> lines = new ArrayList<>();
+        final List<RowError> errors = new ArrayList<>();
+    }
+    
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_REPORTED_ERRORS = 1000;
+    private static final List<String> COLUMNS = Arrays.asList(
+            "firstname", "lastname", "email", "phone", "department", "gpa");
+    
+    private final StudentService service;
+    private final StudentStore repository;
+    
+    StudentImporter(StudentService service, StudentStore repository) {
+        this.service = service;
+        this.repository = repository;
+    }
+    
+    ImportResult importFile(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        Format format = name.endsWith(".json") || name.endsWith(".jsonl") ? Format.JSON_LINES : Format.CSV;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return importFrom(reader, format);
+        }
+    }
+    
+    ImportResult importFrom(BufferedReader reader, Format format) throws IOException {
+        long start = System.nanoTime();
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Deque<Future<Chunk>> pending = new ArrayDeque<>();
+        long[] totals = new long[2];
+        List<RowError> errors = new ArrayList<>();
+        try {
+            long lineNumber = 0;
+            int[] columnOrder = null;
+            if (format == Format.CSV) {
+                String header = reader.readLine();
+                lineNumber++;
+                if (header == null) {
+                    return new ImportResult(0, 0, errors, System.nanoTime() - start);
+                }
+                columnOrder = mapHeader(parseCsvLine(header));
+            }
+            
+            List<String> lines = new ArrayList<>(CHUNK_SIZE);
+            long chunkStart = lineNumber + 1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                lines.add(line);
+                if (lines.size() == CHUNK_SIZE) {
+                    pending.add(submit(pool, lines, chunkStart, format, columnOrder));
+                    lines = new ArrayList<>(CHUNK_SIZE);
+                    chunkStart = lineNumber + 1;
+                    // Bound read-ahead so memory stays flat on huge files
+                    if (pending.size() >= 2 * workers) {
+                        commit(pending.poll(), totals, errors);
+                    }
+                }
+            }
+            if (!lines.isEmpty()) {
+                pending.add(submit(pool, lines, chunkStart, format, columnOrder));
+            }
+            while (!pending.isEmpty()) {
+                commit(pending.poll(), totals, errors);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new ImportResult(totals[0], totals[1], errors, System.nanoTime() - start);
+    }
+    
+    private Future<Chunk> submit(ExecutorService pool, List<String> lines, long firstLine,
+                                 Format format, int[] columnOrder) {
+        return pool.submit(() -> parseChunk(lines, firstLine, format, columnOrder));
+    }
+    
+    private void commit(Future<Chunk> future, long[] totals, List<RowError> errors) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Import worker failed", e.getCause());
+        }
+        
+        if (!chunk.students.isEmpty()) {
+            int id = repository.reserveIds(chunk.students.size());
+            for (Student student : chunk.students) {
+                student.setStudentId(id++);
+            }
+            // Duplicates the parse-time check missed: repeats within the
+            // file, or emails registered while the import ran
+            BatchResult result = repository.addStudents(chunk.students);
+            for (int i = 0; i < chunk.students.size(); i++) {
+                Student student = chunk.students.get(i);
+                if (result.getOutcomes().get(student.getStudentId()) == BatchResult.Outcome.DUPLICATE) {
+                    chunk.errors.add(new RowError(chunk.lines.get(i), "Email already registered: " + student.getEmail()));
+                }
+            }
+            totals[0] += result.count(BatchResult.Outcome.CREATED);
+        }
+        totals[1] += chunk.errors.size();
+        for (RowError error : chunk.errors) {
+            if (errors.size() >= MAX_REPORTED_ERRORS) {
+                break;
+            }
+            errors.add(error);
+        }
+    }
+    
+    private Chunk parseChunk(List<String> lines, long firstLine, Format format, int[] columnOrder) {
+        Chunk chunk = new Chunk();
+        long lineNumber = firstLine;
+        for (String line : lines) {
+            if (!line.trim().isEmpty()) {
+                try {
+                    String[] fields = format == Format.CSV
+                            ? reorder(parseCsvLine(line), columnOrder)
+                            : parseJsonLine(line);
+                    chunk.students.add(toStudent(fields));
+                    chunk.lines.add(lineNumber);
+                } catch (IllegalArgumentException e) {
+                    chunk.errors.add(new RowError(lineNumber, e.getMessage()));
+                }
+            }
+            lineNumber++;
+        }
+        return chunk;
+    }
+    
+    // fields are in COLUMNS order; gpa may be null
+    Student toStudent(String[] fields) {
+        service.validateStudentData(fields[0], fields[1], fields[2], fields[3], fields[4]);
+        Student student = new Student(0, fields[0].trim(), fields[1].trim(), fields[2].trim(),
+                fields[3] == null ? "" : fields[3].trim(), fields[4].trim());
+        if (fields[5] != null && !fields[5].trim().isEmpty()) {
+            double gpa;
+            try {
+                gpa = Double.parseDouble(fields[5].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("GPA is not a number: " + fields[5]);
+            }
+            if (gpa < 0.0 || gpa > 4.0) {
+                throw new IllegalArgumentException("GPA must be between 0.0 and 4.0");
+            }
+            student.setGpa(gpa);
+        }
+        return student;
+    }
+    
+    private static int[] mapHeader(List<String> header) {
+        int[] order = new int[COLUMNS.size()];
+        Arrays.fill(order, -1);
+        for (int i = 0; i < header.size(); i++) {
+            int column = COLUMNS.indexOf(header.get(i).trim().toLowerCase(Locale.ROOT));
+            if (column >= 0) {
+                order[column] = i;
+            }
+        }
+        for (int column = 0; column < 5; column++) {
+            if (order[column] < 0) {
+                throw new IllegalArgumentException("CSV header is missing column: " + COLUMNS.get(column));
+            }
+        }
+        return order;
+    }
+    
+    private static String[] reorder(List<String> values, int[] columnOrder) {
+        String[] fields = new String[COLUMNS.size()];
+        for (int column = 0; column < fields.length; column++) {
+            int index = columnOrder[column];
+            fields[column] = index >= 0 && index < values.size() ? values.get(index) : null;
+        }
+        return fields;
+    }
+    
+    static List<String> parseCsvLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        values.add(current.toString());
+        return values;
+    }
+    
+    // Parses one flat JSON object of string, number or null values
+    static String[] parseJsonLine(String line) {
+        String[] fields = new String[COLUMNS.size()];
+        int[] pos = {skipSpace(line, 0)};
+        expect(line, pos, '{');
+        if (peek(line, pos) == '}') {
+            return fields;
+        }
+        while (true) {
+            String key = readJsonString(line, pos);
+            expect(line, pos, ':');
+            String value = readJsonValue(line, pos);
+            int column = COLUMNS.indexOf(key.toLowerCase(Locale.ROOT));
+            if (column >= 0) {
+                fields[column] = value;
+            }
+            char next = peek(line, pos);
+            pos[0]++;
+            if (next == '}') {
+                return fields;
+            }
+            if (next != ',') {
+                throw new IllegalArgumentException("Malformed JSON at column " + pos[0]);
+            }
+        }
+    }
+    
+    private static String readJsonValue(String line, int[] pos) {
+        char c = peek(line, pos);
+        if (c == '"') {
+            return readJsonString(line, pos);
+        }
+        int start = pos[0];
+        while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        String literal = line.substring(start, pos[0]);
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("Malformed JSON at column " + start);
+        }
+        return literal.equals("null") ? null : literal;
+    }
+    
+    private static String readJsonString(String line, int[] pos) {
+        expect(line, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (pos[0] < line.length()) {
+            char c = line.charAt(pos[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (pos[0] >= line.length()) {
+                break;
+            }
+            char escaped = line.charAt(pos[0]++);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 't': value.append('\t'); break;
+                case 'r': value.append('\r'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    if (pos[0] + 4 > line.length()) {
+                        throw new IllegalArgumentException("Malformed JSON escape");
+                    }
+                    value.append((char) Integer.parseInt(line.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+    
+    private static void expect(String line, int[] pos, char expected) {
+        if (peek(line, pos) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at column " + pos[0]);
+        }
+        pos[0]++;
+    }
+    
+    private static char peek(String line, int[] pos) {
+        pos[0] = skipSpace(line, pos[0]);
+        return pos[0] < line.length() ? line.charAt(pos[0]) : '\0';
+    }
+    
+    private static int skipSpace(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
+
+/**
+ * Console table for student listings. Column widths are fixed up front
+ * and each row is padded into one reused StringBuilder, then written to a
+ * large buffered writer, so a listing costs no format-string parsing and
+ * one write per buffer-full instead of one flushing printf per student.
+ */
+class StudentTableRenderer {
+    private static final String[] HEADERS = {"ID", "First Name", "Last Name", "Email", "Phone", "Department", "GPA"};
+    private static final int[] WIDTHS = {5, 15, 15, 25, 15, 15, 8};
+    private static final int RULE_WIDTH = 100;
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    private final Writer out;
+    private final StringBuilder row = new StringBuilder(128);
+    private char[] chars = new char[256];
+    
+    StudentTableRenderer(Writer out) {
+        this.out = out;
+    }
+    
+    /** Renders to System.out; call {@link #flush()} before printing anything else. */
+    static StudentTableRenderer toConsole() {
+        System.out.flush();
+        return new StudentTableRenderer(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE));
+    }
+    
+    void header() throws IOException {
+        row.setLength(0);
+        for (int column = 0; column < HEADERS.length; column++) {
+            pad(HEADERS[column], WIDTHS[column], column);
+        }
+        row.append(System.lineSeparator());
+        for (int i = 0; i < RULE_WIDTH; i++) {
+            row.append('-');
+        }
+        row.append(System.lineSeparator());
+        write();
+    }
+    
+    void row(Student student) throws IOException {
+        row.setLength(0);
+        int start = row.length();
+        row.append(student.getStudentId());
+        padFrom(start, WIDTHS[0]);
+        pad(student.getFirstName(), WIDTHS[1], 1);
+        pad(student.getLastName(), WIDTHS[2], 2);
+        pad(student.getEmail(), WIDTHS[3], 3);
+        pad(student.getPhoneNumber(), WIDTHS[4], 4);
+        pad(student.getDepartment(), WIDTHS[5], 5);
+        row.append(' ');
+        start = row.length();
+        appendFixed2(row, student.getGpa());
+        padFrom(start, WIDTHS[6]);
+        row.append(System.lineSeparator());
+        write();
+    }
+    
+    /** Header, one row per student, then the count; returns the count. */
+    int table(Iterator<Student> students) throws IOException {
+        header();
+        int count = 0;
+        while (students.hasNext()) {
+            row(students.next());
+            count++;
+        }
+        flush();
+        return count;
+    }
+    
+    void flush() throws IOException {
+        out.flush();
+    }
+    
+    // Same as %.2f for GPAs stored to two decimals
+    static void appendFixed2(StringBuilder text, double value) {
+        long hundredths = Math.round(Math.abs(value) * 100);
+        if (value < 0 && hundredths != 0) {
+            text.append('-');
+        }
+        text.append(hundredths / 100).append('.');
+        long fraction = hundredths % 100;
+        if (fraction < 10) {
+            text.append('0');
+        }
+        text.append(fraction);
+    }
+    
+    // Copies the row out through a reused array; Writer.append would make a String
+    private void write() throws IOException {
+        if (chars.length < row.length()) {
+            chars = new char[row.length() * 2];
+        }
+        row.getChars(0, row.length(), chars, 0);
+        out.write(chars, 0, row.length());
+    }
+    
+    private void pad(String value, int width, int column) {
+        if (column > 0) {
+            row.append(' ');
+        }
+        int start = row.length();
+        row.append(value);
+        padFrom(start, width);
+    }
+    
+    private void padFrom(int start, int width) {
+        for (int i = row.length() - start; i < width; i++) {
+            row.append(' ');
+        }
+    }
+}
+
+/**
+ * Writes students to a CSV or TSV file through a FileChannel. Rows are
+ * built in a reused StringBuilder and encoded straight into one direct
+ * byte buffer, so exporting is bound by disk throughput rather than by
+ * formatting. The CSV header uses the import column names, so an export
+ * can be imported again.
+ */
+class StudentExporter {
+    enum Format { CSV, TSV }
+    
+    private static final String[] COLUMNS = {
+        "id", "firstName", "lastName", "email", "phone", "department", "gpa", "enrollmentDate"
+    };
+    private static final int FLUSH_CHARS = 1 << 15;
+    
+    private final Format format;
+    private final char separator;
+    private final StringBuilder text = new StringBuilder(FLUSH_CHARS + 512);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(1 << 16);
+    
+    StudentExporter(Format format) {
+        this.format = format;
+        this.separator = format == Format.CSV ? ',' : '\t';
+    }
+    
+    static Format formatFor(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".tsv") ? Format.TSV : Format.CSV;
+    }
+    
+    /** Writes a header and one line per student, replacing the file; returns the row count. */
+    long export(Iterator<Student> students, Path file) throws IOException {
+        long rows = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            encoder.reset();
+            bytes.clear();
+            text.setLength(0);
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) {
+                    text.append(separator);
+                }
+                text.append(COLUMNS[i]);
+            }
+            text.append('\n');
+            while (students.hasNext()) {
+                appendRow(students.next());
+                rows++;
+                if (text.length() >= FLUSH_CHARS) {
+                    drain(channel, false);
+                }
+            }
+            drain(channel, true);
+        }
+        return rows;
+    }
+    
+    private void appendRow(Student student) {
+        text.append(student.getStudentId()).append(separator);
+        appendField(student.getFirstName());
+        text.append(separator);
+        appendField(student.getLastName());
+        text.append(separator);
+        appendField(student.getEmail());
+        text.append(separator);
+        appendField(student.getPhoneNumber());
+        text.append(separator);
+        appendField(student.getDepartment());
+        text.append(separator);
+        StudentTableRenderer.appendFixed2(text, student.getGpa());
+        text.append(separator);
+        if (student.getEnrollmentDate() != null) {
+            text.append(student.getEnrollmentDate());
+        }
+        text.append('\n');
+    }
+    
+    private void appendField(String value) {
+        if (value == null) {
+            return;
+        }
+        if (format == Format.TSV) {
+            // TSV has no quoting: tabs and line breaks become spaces
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                text.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+            }
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            text.append(value);
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                text.append('"');
+            }
+            text.append(c);
+        }
+        text.append('"');
+    }
+    
+    // Encodes the pending text into the byte buffer, writing it out each time it fills
+    private void drain(FileChannel channel, boolean endOfInput) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes(channel);
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        text.setLength(0);
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+                writeBytes(channel);
+            }
+            writeBytes(channel);
+        }
+    }
+    
+    private void writeBytes(FileChannel channel) throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
+
+/**
+ * Headless command runner for scripted jobs. Reads one command per line,
+ * as CSV with the command name first, and writes one compact result line
+ * per command, "<line> OK [detail]", "<line> NOT_FOUND" or
+ * "<line> ERR <message>", in input order through the given writer. Blank
+ * lines and lines starting with # are skipped.
+ *
+ *   add,first,last,email,phone,department[,gpa]   -> OK <id>
+ *   get,id                                        -> OK id,first,last,email,phone,department,gpa,enrolled
+ *   update,id,first,last,email,phone,department,gpa
+ *   gpa,id,gpa
+ *   delete,id
+ *   search,term[,limit]                           -> OK <n> <id> <id> ... (n IDs, default limit 100)
+ *   department,name[,limit]                       -> OK <n> <id> <id> ...
+ *   count                                         -> OK <total>
+ *   stats                                         -> OK total=.. average=.. min=.. max=..
+ *
+ * Writes are validated as they are read, then queued, and a window of up
+ * to BATCH_SIZE of them is applied as four batched store calls (deletes,
+ * updates, GPAs, then adds), so a durable store syncs its log a few times
+ * per window instead of once per command. A window only ever holds one
+ * write per student and one claim per email, so applying it kind by kind
+ * gives the same outcome as applying it line by line. A write that would
+ * break that applies the queued window first, and so does any read
+ * except a get of a student the window doesn't touch.
+ */
+class StudentBatchRunner {
+    private static final int BATCH_SIZE = 4096;
+    private static final int DEFAULT_LIST_LIMIT = 100;
+    
+    static class Summary {
+        final long commands;
+        final long failed;
+        final long elapsedNanos;
+        
+        Summary(long commands, long failed, long elapsedNanos) {
+            this.commands = commands;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        double commandsPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : commands * 1e9 / elapsedNanos;
+        }
+    }
+    
+    private enum Kind { ADD, UPDATE, GPA, DELETE }
+    
+    // A queued write, or a result already known (kind null) that just has
+    // to wait for the writes before it
+    private static class Pending {
+        final long line;
+        final Kind kind;
+        final int id;
+        final String status;
+        final String detail;
+        
+        Pending(long line, Kind kind, int id) {
+            this(line, kind, id, null, null);
+        }
+        
+        Pending(long line, Kind kind, int id, String status, String detail) {
+            this.line = line;
+            this.kind = kind;
+            this.id = id;
+            this.status = status;
+            this.detail = detail;
+        }
+    }
+    
+    private final StudentService service;
+    private final StudentStore repository;
+    private final StudentImporter importer;
+    private final StringBuilder line = new StringBuilder(128);
+    private Writer out;
+    private long commands;
+    private long failed;
+    
+    // The queued window
+    private final List<Pending> pending = new ArrayList<>();
+    private final Set<Integer> touchedIds = new HashSet<>();
+    private final Set<String> claimedEmails = new HashSet<>();
+    private final List<Student> adds = new ArrayList<>();
+    private final Map<Integer, Student> updates = new LinkedHashMap<>();
+    private final Map<Integer, Double> gpas = new LinkedHashMap<>();
+    private final Set<Integer> deletes = new LinkedHashSet<>();
+    
+    StudentBatchRunner(StudentService service, StudentStore repository) {
+        this.service = service;
+        this.repository = repository;
+        this.importer = new StudentImporter(service, repository);
+    }
+    
+    Summary run(BufferedReader commandReader, Writer resultWriter) throws IOException {
+        long start = System.nanoTime();
+        this.out = resultWriter;
+        long lineNumber = 0;
+        String text;
+        while ((text = commandReader.readLine()) != null) {
+            lineNumber++;
+            String trimmed = text.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            commands++;
+            try {
+                execute(lineNumber, StudentImporter.parseCsvLine(trimmed));
+            } catch (IllegalArgumentException e) {
+                String message = e.getMessage() == null ? "" : e.getMessage().replace('\n', ' ');
+                pending.add(new Pending(lineNumber, null, 0, "ERR", message));
+            }
+            if (pending.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+        flush();
+        out.flush();
+        return new Summary(commands, failed, System.nanoTime() - start);
+    }
+    
+    private void execute(long lineNumber, List<String> fields) throws IOException {
+        String command = fields.get(0).trim().toLowerCase(Locale.ROOT);
+        switch (command) {
+            case "add": {
+                require(fields, 6, 7, "add,first,last,email,phone,department[,gpa]");
+                String[] values = new String[6];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = i + 1 < fields.size() ? fields.get(i + 1) : null;
+                }
+                claimEmail(values[2]);
+                Student student = importer.toStudent(values);
+                student.setStudentId(repository.reserveIds(1));
+                touchedIds.add(student.getStudentId());
+                adds.add(student);
+                pending.add(new Pending(lineNumber, Kind.ADD, student.getStudentId()));
+                break;
+            }
+            case "update": {
+                require(fields, 8, 8, "update,id,first,last,email,phone,department,gpa");
+                int id = parseId(fields.get(1));
+                double gpa = parseGpa(fields.get(7));
+                claimId(id);
+                if (!repository.studentExists(id)) {
+                    pending.add(new Pending(lineNumber, null, id, "NOT_FOUND", null));
+                    break;
+                }
+                claimEmail(fields.get(4));
+                service.validateStudentData(id, fields.get(2), fields.get(3), fields.get(4), fields.get(5),
+                        fields.get(6));
+                Student replacement = new Student(id, fields.get(2).trim(), fields.get(3).trim(),
+                        fields.get(4).trim(), fields.get(5).trim(), fields.get(6).trim());
+                replacement.setGpa(gpa);
+                updates.put(id, replacement);
+                pending.add(new Pending(lineNumber, Kind.UPDATE, id));
+                break;
+            }
+            case "gpa": {
+                require(fields, 3, 3, "gpa,id,gpa");
+                int id = parseId(fields.get(1));
+                double gpa = parseGpa(fields.get(2));
+                claimId(id);
+                gpas.put(id, gpa);
+                pending.add(new Pending(lineNumber, Kind.GPA, id));
+                break;
+            }
+            case "delete": {
+                require(fields, 2, 2, "delete,id");
+                int id = parseId(fields.get(1));
+                claimId(id);
+                deletes.add(id);
+                pending.add(new Pending(lineNumber, Kind.DELETE, id));
+                break;
+            }
+            case "get": {
+                require(fields, 2, 2, "get,id");
+                int id = parseId(fields.get(1));
+                // A student the window doesn't write reads the same now as after it
+                if (touchedIds.contains(id)) {
+                    flush();
+                }
+                Student student = service.getStudentById(id);
+                pending.add(new Pending(lineNumber, null, id, student == null ? "NOT_FOUND" : "OK",
+                        student == null ? null : csv(student)));
+                break;
+            }
+            case "search": {
+                require(fields, 2, 3, "search,term[,limit]");
+                int limit = fields.size() > 2 ? parseCount(fields.get(2)) : DEFAULT_LIST_LIMIT;
+                flush();
+                result(lineNumber, "OK", ids(service.searchStudents(fields.get(1).trim(), 0, limit), limit));
+                break;
+            }
+            case "department": {
+                require(fields, 2, 3, "department,name[,limit]");
+                int limit = fields.size() > 2 ? parseCount(fields.get(2)) : DEFAULT_LIST_LIMIT;
+                flush();
+                result(lineNumber, "OK", ids(service.findStudentsByDepartment(fields.get(1).trim()), limit));
+                break;
+            }
+            case "count":
+                flush();
+                result(lineNumber, "OK", String.valueOf(service.getTotalStudentCount()));
+                break;
+            case "stats":
+                flush();
+                result(lineNumber, "OK", String.format(Locale.ROOT, "total=%d average=%.2f min=%.2f max=%.2f",
+                        service.getTotalStudentCount(), service.getAverageGpa(),
+                        service.getLowestGpa(), service.getHighestGpa()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+    
+    // A student already written in this window: apply the window first
+    private void claimId(int id) throws IOException {
+        if (!touchedIds.add(id)) {
+            flush();
+            touchedIds.add(id);
+        }
+    }
+    
+    // An email already claimed in this window, or held by a student the
+    // window changes: apply the window first, so validation sees the
+    // email's owner as of this line
+    private void claimEmail(String email) throws IOException {
+        if (email == null || email.trim().isEmpty()) {
+            return;
+        }
+        String key = email.trim().toLowerCase(Locale.ROOT);
+        Optional<Student> holder = repository.getStudentByEmail(key);
+        if (claimedEmails.contains(key) || (holder.isPresent() && touchedIds.contains(holder.get().getStudentId()))) {
+            flush();
+        }
+        claimedEmails.add(key);
+    }
+    
+    private void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        BatchResult deleted = deletes.isEmpty() ? null : service.deleteStudents(deletes);
+        BatchResult updated = updates.isEmpty() ? null : repository.updateStudents(updates.keySet(), existing -> {
+            Student replacement = new Student(updates.get(existing.getStudentId()));
+            replacement.setEnrollmentDate(existing.getEnrollmentDate());
+            return replacement;
+        });
+        BatchResult gpaUpdated = gpas.isEmpty() ? null : service.updateGpas(gpas);
+        BatchResult added = adds.isEmpty() ? null : repository.addStudents(adds);
+        
+        for (Pending entry : pending) {
+            if (entry.kind == null) {
+                if ("ERR".equals(entry.status)) {
+                    failed++;
+                }
+                result(entry.line, entry.status, entry.detail);
+                continue;
+            }
+            switch (entry.kind) {
+                case ADD:
+                    if (added.getOutcomes().get(entry.id) == BatchResult.Outcome.CREATED) {
+                        result(entry.line, "OK", String.valueOf(entry.id));
+                    } else {
+                        error(entry.line, "Email already registered");
+                    }
+                    break;
+                case UPDATE:
+                    report(entry.line, updated.getOutcomes().get(entry.id));
+                    break;
+                case GPA:
+                    report(entry.line, gpaUpdated.getOutcomes().get(entry.id));
+                    break;
+                default:
+                    report(entry.line, deleted.getOutcomes().get(entry.id));
+            }
+        }
+        pending.clear();
+        touchedIds.clear();
+        claimedEmails.clear();
+        adds.clear();
+        updates.clear();
+        gpas.clear();
+        deletes.clear();
+    }
+    
+    private void report(long lineNumber, BatchResult.Outcome outcome) throws IOException {
+        if (outcome == BatchResult.Outcome.UPDATED || outcome == BatchResult.Outcome.DELETED) {
+            result(lineNumber, "OK", null);
+        } else if (outcome == BatchResult.Outcome.NOT_FOUND || outcome == null) {
+            result(lineNumber, "NOT_FOUND", null);
+        } else if (outcome == BatchResult.Outcome.DUPLICATE) {
+            error(lineNumber, "Email already registered");
+        } else {
+            error(lineNumber, outcome.toString());
+        }
+    }
+    
+    private void result(long lineNumber, String status, String detail) throws IOException {
+        line.setLength(0);
+        line.append(lineNumber).append(' ').append(status);
+        if (detail != null) {
+            line.append(' ').append(detail);
+        }
+        line.append('\n');
+        out.append(line);
+    }
+    
+    private void error(long lineNumber, String message) throws IOException {
+        failed++;
+        result(lineNumber, "ERR", message);
+    }
+    
+    private static void require(List<String> fields, int min, int max, String usage) {
+        if (fields.size() < min || fields.size() > max) {
+            throw new IllegalArgumentException("Usage: " + usage);
+        }
+    }
+    
+    private static int parseId(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Student ID is not a number: " + value);
+        }
+    }
+    
+    private static int parseCount(String value) {
+        int count = parseId(value);
+        if (count < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        return count;
+    }
+    
+    private static double parseGpa(String value) {
+        double gpa;
+        try {
+            gpa = Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("GPA is not a number: " + value);
+        }
+        if (gpa < 0.0 || gpa > 4.0) {
+            throw new IllegalArgumentException("GPA must be between 0.0 and 4.0");
+        }
+        return gpa;
+    }
+    
+    // The number of IDs listed, then the IDs
+    private static String ids(List<Student> students, int limit) {
+        int count = Math.min(students.size(), limit);
+        StringBuilder text = new StringBuilder().append(count);
+        for (int i = 0; i < count; i++) {
+            text.append(' ').append(students.get(i).getStudentId());
+        }
+        return text.toString();
+    }
+    
+    private static String csv(Student student) {
+        StringBuilder text = new StringBuilder(96);
+        text.append(student.getStudentId());
+        for (String value : new String[] {student.getFirstName(), student.getLastName(), student.getEmail(),
+                student.getPhoneNumber(), student.getDepartment()}) {
+            text.append(',');
+            appendCsv(text, value);
+        }
+        text.append(',');
+        StudentTableRenderer.appendFixed2(text, student.getGpa());
+        text.append(',');
+        if (student.getEnrollmentDate() != null) {
+            text.append(student.getEnrollmentDate());
+        }
+        return text.toString();
+    }
+    
+    private static void appendCsv(StringBuilder text, String value) {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            text.append(value);
+            return;
+        }
+        text.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+}
+
+/**
+ * JSON-over-HTTP front end for StudentService on the JDK's built-in
+ * server. Each request runs on its own virtual thread when the runtime
+ * has them (Java 21+) and on an unbounded cached pool otherwise, so
+ * concurrency is never capped by a fixed worker count.
+ *
+ *   GET    /students?after=ID&limit=N    page in ID order
+ *   POST   /students                     create; body as in JSON imports
+ *   GET    /students/{id}
+ *   PUT    /students/{id}                replace; gpa optional
+ *   DELETE /students/{id}
+ *   GET    /search?q=TERM&offset=N&limit=N
+ *   GET    /departments/{name}/students
+ *   GET    /stats
+ *   GET    /metrics                      Prometheus text format
+ */
+class StudentHttpServer implements Closeable {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int BACKLOG = 1024;
+    
+    private interface Route {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+    
+    // Thrown by routes for a 404; other failures map to 400 or 500
+    private static class NotFoundException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        NotFoundException(String message) {
+            super(message);
+        }
+    }
+    
+    private final StudentService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    StudentHttpServer(StudentService service, InetSocketAddress address) throws IOException {
+        this.service = service;
+        // The JDK server writes headers and body separately; with Nagle on,
+        // the client's delayed ACK holds every keep-alive response ~40 ms.
+        // Read once by the JDK, so it must be set before the first server.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(address, BACKLOG);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/students", exchange -> dispatch(exchange, this::handleStudents));
+        server.createContext("/search", exchange -> dispatch(exchange, this::handleSearch));
+        server.createContext("/departments", exchange -> dispatch(exchange, this::handleDepartment));
+        server.createContext("/stats", exchange -> dispatch(exchange, this::handleStats));
+        server.createContext("/metrics", exchange -> dispatch(exchange, this::handleMetrics));
+    }
+    
+    void start() {
+        server.start();
+    }
+    
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+    
+    // Virtual threads are looked up reflectively so this still compiles and
+    // runs on Java 17, where a cached pool is the nearest equivalent
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "student-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    private void dispatch(HttpExchange exchange, Route route) throws IOException {
+        try {
+            route.handle(exchange);
+        } catch (NotFoundException e) {
+            sendError(exchange, 404, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void handleStudents(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String rest = path.length() > "/students".length() ? path.substring("/students".length() + 1) : "";
+        String method = exchange.getRequestMethod();
+        
+        if (rest.isEmpty()) {
+            if (method.equals("GET")) {
+                Map<String, String> query = parseQuery(exchange);
+                int after = intParameter(query, "after", 0);
+                int limit = intParameter(query, "limit", DEFAULT_PAGE_SIZE);
+                sendJson(exchange, 200, toJson(service.getStudentPage(after, limit)));
+            } else if (method.equals("POST")) {
+                String[] fields = readStudentFields(exchange);
+                Student created = service.createStudent(fields[0], fields[1], fields[2],
+                        fields[3] == null ? "" : fields[3], fields[4]);
+                if (fields[5] != null) {
+                    service.updateStudentGpa(created.getStudentId(), parseGpa(fields[5]));
+                    created = service.getStudentById(created.getStudentId());
+                }
+                exchange.getResponseHeaders().set("Location", "/students/" + created.getStudentId());
+                sendJson(exchange, 201, toJson(created));
+            } else {
+                sendError(exchange, 405, "Method not allowed");
+            }
+            return;
+        }
+        
+        int id = parseId(rest);
+        switch (method) {
+            case "GET": {
+                sendJson(exchange, 200, toJson(requireStudent(id)));
+                break;
+            }
+            case "PUT": {
+                String[] fields = readStudentFields(exchange);
+                double gpa = fields[5] != null ? parseGpa(fields[5]) : requireStudent(id).getGpa();
+                if (!service.updateStudent(id, fields[0], fields[1], fields[2],
+                        fields[3] == null ? "" : fields[3], fields[4], gpa)) {
+                    throw new NotFoundException("Student not found: " + id);
+                }
+                sendJson(exchange, 200, toJson(requireStudent(id)));
+                break;
+            }
+            case "DELETE": {
+                if (!service.deleteStudent(id)) {
+                    throw new NotFoundException("Student not found: " + id);
+                }
+                exchange.sendResponseHeaders(204, -1);
+                break;
+            }
+            default:
+                sendError(exchange, 405, "Method not allowed");
+        }
+    }
+    
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        Map<String, String> query = parseQuery(exchange);
+        String term = query.get("q");
+        if (term == null || term.isEmpty()) {
+            throw new IllegalArgumentException("Missing search term q");
+        }
+        List<Student> students = service.searchStudents(term, intParameter(query, "offset", 0),
+                intParameter(query, "limit", DEFAULT_PAGE_SIZE));
+        sendJson(exchange, 200, toJson(students));
     }
     
-    @Override
-    public String toString() {
-        return String.format("Student{ID=%d, Name='%s %s', Email='%s', Phone='%s', Dept='%s', GPA=%.2f, Enrolled=%s}",
-                studentId, firstName, lastName, email, phoneNumber, department, gpa, enrollmentDate);
+    private void handleDepartment(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        String path = exchange.getRequestURI().getPath();
+        if (!path.startsWith("/departments/") || !path.endsWith("/students")) {
+            throw new NotFoundException("Unknown path: " + path);
+        }
+        String department = path.substring("/departments/".length(), path.length() - "/students".length());
+        sendJson(exchange, 200, toJson(service.findStudentsByDepartment(department)));
     }
     
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj) return true;
-        if (obj == null || getClass() != obj.getClass()) return false;
-        Student student = (Student) obj;
-        return studentId == student.studentId;
+    private void handleStats(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"totalStudents\":").append(service.getTotalStudentCount())
+                .append(",\"averageGpa\":").append(service.getAverageGpa())
+                .append(",\"lowestGpa\":").append(service.getLowestGpa())
+                .append(",\"highestGpa\":").append(service.getHighestGpa())
+                .append(",\"departments\":[");
+        List<String> departments = service.getAvailableDepartments();
+        for (int i = 0; i < departments.size(); i++) {
+            String department = departments.get(i);
+            json.append(i == 0 ? "" : ",").append("{\"name\":");
+            appendString(json, department);
+            json.append(",\"students\":").append(service.countStudentsByDepartment(department))
+                    .append(",\"averageGpa\":").append(service.getDepartmentAverageGpa(department))
+                    .append('}');
+        }
+        json.append("]}");
+        sendJson(exchange, 200, json.toString());
     }
     
-    @Override
-    public int hashCode() {
-        return Objects.hash(studentId);
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        send(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", service.getMetricsText());
     }
-}
-
-class StudentRepository {
-    private Map<Integer, Student> studentDatabase;
-    private int nextId;
     
-    public StudentRepository() {
-        this.studentDatabase = new HashMap<>();
-        this.nextId = 1;
-        initializeSampleData();
+    private Student requireStudent(int id) {
+        Student student = service.getStudentById(id);
+        if (student == null) {
+            throw new NotFoundException("Student not found: " + id);
+        }
+        return student;
     }
     
-    private void initializeSampleData() {
-        addStudent(new Student(generateId(), "Alice", "Johnson", "alice.j@email.com", "555-0101", "Computer Science"));
-        addStudent(new Student(generateId(), "Bob", "Smith", "bob.smith@email.com", "555-0102", "Mathematics"));
-        addStudent(new Student(generateId(), "Carol", "Williams", "carol.w@email.com", "555-0103", "Physics"));
+    private static void requireGet(HttpExchange exchange) {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            throw new IllegalArgumentException("Only GET is supported here");
+        }
     }
     
-    private int generateId() {
-        return nextId++;
+    // Fields in StudentImporter column order: first, last, email, phone, department, gpa
+    private static String[] readStudentFields(HttpExchange exchange) throws IOException {
+        String body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        if (body.trim().isEmpty()) {
+            throw new IllegalArgumentException("Request body is required");
+        }
+        return StudentImporter.parseJsonLine(body);
     }
     
-    public Student addStudent(Student student) {
-        if (student.getStudentId() <= 0) {
-            student.setStudentId(generateId());
+    private static double parseGpa(String value) {
+        double gpa;
+        try {
+            gpa = Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("GPA is not a number: " + value);
         }
-        studentDatabase.put(student.getStudentId(), student);
-        return student;
+        if (gpa < 0.0 || gpa > 4.0) {
+            throw new IllegalArgumentException("GPA must be between 0.0 and 4.0");
+        }
+        return gpa;
     }
     
-    public List<Student> getAllStudents() {
-        return new ArrayList<>(studentDatabase.values());
+    private static int parseId(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new NotFoundException("Unknown path: /students/" + value);
+        }
     }
     
-    public Optional<Student> getStudentById(int id) {
-        return Optional.ofNullable(studentDatabase.get(id));
+    private static Map<String, String> parseQuery(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
     }
     
-    public List<Student> getStudentsByDepartment(String department) {
-        return studentDatabase.values().stream()
-                .filter(s -> s.getDepartment().equalsIgnoreCase(department))
-                .collect(Collectors.toList());
+    private static int intParameter(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be an integer");
+        }
     }
     
-    public List<Student> searchStudentsByName(String nameQuery) {
-        String query = nameQuery.toLowerCase();
-        return studentDatabase.values().stream()
-                .filter(s -> s.getFullName().toLowerCase().contains(query))
-                .collect(Collectors.toList());
+    static String toJson(Student student) {
+        StringBuilder json = new StringBuilder(192);
+        appendStudent(json, student);
+        return json.toString();
     }
     
-    public boolean updateStudent(int id, Student updatedStudent) {
-        if (studentDatabase.containsKey(id)) {
-            updatedStudent.setStudentId(id);
-            studentDatabase.put(id, updatedStudent);
-            return true;
+    static String toJson(List<Student> students) {
+        StringBuilder json = new StringBuilder(2 + students.size() * 192);
+        json.append('[');
+        for (int i = 0; i < students.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendStudent(json, students.get(i));
         }
-        return false;
+        return json.append(']').toString();
     }
     
-    public boolean deleteStudent(int id) {
-        return studentDatabase.remove(id) != null;
+    private static void appendStudent(StringBuilder json, Student student) {
+        json.append("{\"id\":").append(student.getStudentId());
+        json.append(",\"firstName\":");
+        appendString(json, student.getFirstName());
+        json.append(",\"lastName\":");
+        appendString(json, student.getLastName());
+        json.append(",\"email\":");
+        appendString(json, student.getEmail());
+        json.append(",\"phone\":");
+        appendString(json, student.getPhoneNumber());
+        json.append(",\"department\":");
+        appendString(json, student.getDepartment());
+        json.append(",\"gpa\":").append(student.getGpa());
+        json.append(",\"enrollmentDate\":");
+        appendString(json, student.getEnrollmentDate() == null ? null : student.getEnrollmentDate().toString());
+        json.append('}');
     }
     
-    public int getTotalStudents() {
-        return studentDatabase.size();
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
     }
     
-    public boolean studentExists(int id) {
-        return studentDatabase.containsKey(id);
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendString(json, message);
+        sendJson(exchange, status, json.append('}').toString());
     }
     
-    public List<String> getAllDepartments() {
-        return studentDatabase.values().stream()
-                .map(Student::getDepartment)
-                .distinct()
-                .sorted()
-                .collect(Collectors.toList());
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        send(exchange, status, "application/json; charset=utf-8", json);
+    }
+    
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
     }
 }
 
-class StudentService {
-    private StudentRepository repository;
+/**
+ * Micro-benchmarks for the repository and service hot paths. This is a
+ * single-file project with no build or dependencies, so instead of JMH it
+ * uses a small harness of its own: per operation, a warmup phase, then
+ * timed rounds whose results feed a sink so the JIT cannot drop the work.
+ * Each operation reports ns/op and, in place of JMH's GC profiler, the
+ * bytes it allocates per op on the benchmark thread.
+ *
+ * Run with: java -Xmx8g -cp . StudentBenchmark [sizes] [seconds per op]
+ * e.g. "java -cp . StudentBenchmark 10000,1000000 2". Defaults to 10K, 1M
+ * and 10M students; the largest needs a heap of several gigabytes.
+ * "StudentBenchmark --memory [size]" instead compares the heap retained
+ * by each StudentStore backend, and "StudentBenchmark --http [clients]
+ * [seconds] [size]" load-tests StudentHttpServer over loopback.
+ */
+class StudentBenchmark {
+    private static final String[] FIRST_NAMES = {
+        "James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda", "David", "Elizabeth",
+        "William", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen",
+        "Wei", "Priya", "Mohammed", "Aisha", "Hiroshi", "Sofia", "Mateo", "Olga", "Kwame", "Ingrid"
+    };
+    private static final String[] LAST_NAMES = {
+        "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+        "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin",
+        "Lee", "Nguyen", "Patel", "Kim", "Chen", "Okafor", "Kowalski", "Schmidt", "Rossi", "Tanaka"
+    };
+    private static final String[] DEPARTMENTS = {
+        "Computer Science", "Business", "Psychology", "Biology", "Engineering", "Nursing", "Economics",
+        "Mathematics", "English", "History", "Physics", "Chemistry", "Art", "Music", "Philosophy"
+    };
+    private static final String[] SEARCH_TERMS = {"smith", "jen", "patel", "ria", "son", "wei k", "zz"};
     
-    public StudentService() {
-        this.repository = new StudentRepository();
+    private static long sink;
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--memory")) {
+            int size = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+            System.out.printf("Retained heap for %,d students:%n", size);
+            compareMemory("StudentRepository", new StudentRepository(), size);
+            compareMemory("ColumnarStudentRepository", new ColumnarStudentRepository(), size);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--http")) {
+            int clients = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+            double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+            int size = args.length > 3 ? Integer.parseInt(args[3]) : 100_000;
+            loadTestHttp(clients, (long) (seconds * 1e9), size);
+            return;
+        }
+        String sizes = args.length > 0 ? args[0] : "10000,1000000,10000000";
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+        for (String size : sizes.split(",")) {
+            run(Integer.parseInt(size.trim()), (long) (seconds * 1e9));
+        }
+        System.out.println("(sink " + sink + ")");
     }
     
-    public Student createStudent(String firstName, String lastName, String email, 
-                               String phone, String department) {
-        validateStudentData(firstName, lastName, email, phone, department);
+    /**
+     * Drives a StudentHttpServer on a free loopback port from {@code clients}
+     * concurrent client threads, each issuing requests back to back: ID
+     * lookups, name searches and page reads. The first third of the time
+     * is warmup; after that every request's client-side latency is recorded.
+     */
+    private static void loadTestHttp(int clients, long budgetNanos, int size)
+            throws IOException, InterruptedException {
+        System.out.printf("Loading %,d students...%n", size);
+        StudentService service = new StudentService(populate(new StudentRepository(), size, new Random(42)));
+        ServiceMetrics latencies = new ServiceMetrics();
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try (StudentHttpServer server = new StudentHttpServer(service,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            server.start();
+            String base = "http://127.0.0.1:" + server.getPort();
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            long measureStart = System.nanoTime() + budgetNanos / 3;
+            long end = measureStart + budgetNanos;
+            System.out.printf("%d clients against %s for %.1f s%n", clients, base, budgetNanos / 1e9);
+            
+            List<Future<?>> workers = new ArrayList<>(clients);
+            for (int c = 0; c < clients; c++) {
+                Random random = new Random(c);
+                workers.add(pool.submit(() -> {
+                    while (System.nanoTime() < end) {
+                        int pick = random.nextInt(10);
+                        ServiceMetrics.Operation operation = pick < 7 ? ServiceMetrics.Operation.GET
+                                : ServiceMetrics.Operation.SEARCH;
+                        String path = pick < 7 ? "/students/" + (1 + random.nextInt(size))
+                                : pick < 9 ? "/search?q=" + SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)].replace(" ", "+") + "&limit=20"
+                                : "/students?after=" + random.nextInt(size) + "&limit=20";
+                        HttpRequest request = HttpRequest.newBuilder(URI.create(base + path)).build();
+                        long start = System.nanoTime();
+                        boolean failed;
+                        try {
+                            failed = client.send(request, HttpResponse.BodyHandlers.ofByteArray()).statusCode() != 200;
+                        } catch (IOException e) {
+                            failed = true;
+                        }
+                        if (start >= measureStart) {
+                            latencies.record(operation, start, failed);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Load client failed", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
         
-        Student student = new Student(0, firstName, lastName, email, phone, department);
-        return repository.addStudent(student);
+        double seconds = budgetNanos / 1e9;
+        long total = 0;
+        System.out.printf("%-8s %12s %10s %10s %10s %10s%n", "op", "requests/s", "failures", "p50 us", "p99 us", "max us");
+        for (Map.Entry<ServiceMetrics.Operation, ServiceMetrics.LatencySnapshot> entry : latencies.snapshot().entrySet()) {
+            ServiceMetrics.LatencySnapshot snapshot = entry.getValue();
+            if (snapshot.count == 0) {
+                continue;
+            }
+            total += snapshot.count;
+            System.out.printf("%-8s %,12.0f %10d %10.0f %10.0f %10.0f%n", entry.getKey(), snapshot.count / seconds,
+                    snapshot.failures, snapshot.p50Nanos / 1e3, snapshot.p99Nanos / 1e3, snapshot.maxNanos / 1e3);
+        }
+        System.out.printf("total    %,12.0f requests/s%n", total / seconds);
     }
     
-    public List<Student> getAllStudents() {
-        return repository.getAllStudents();
+    private static void run(int size, long budgetNanos) {
+        System.out.printf("%n=== %,d students ===%n", size);
+        Random random = new Random(42);
+        long loadStart = System.nanoTime();
+        StudentService service = new StudentService(populate(new StudentRepository(), size, random));
+        System.out.printf("load: %.1f s%n", (System.nanoTime() - loadStart) / 1e9);
+        int maxId = size + 3;
+        // Numbers the generated emails, which must be unique
+        int[] serial = {maxId};
+        
+        measure("addStudent", budgetNanos, () -> {
+            Student student = randomStudent(random, ++serial[0]);
+            return service.createStudent(student.getFirstName(), student.getLastName(), student.getEmail(),
+                    student.getPhoneNumber(), student.getDepartment()).getStudentId();
+        });
+        measure("getStudentById", budgetNanos, () -> {
+            Student student = service.getStudentById(1 + random.nextInt(maxId));
+            return student == null ? 0 : student.getStudentId();
+        });
+        measure("searchStudentsByName (limit 20)", budgetNanos,
+                () -> service.searchStudents(SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)], 0, 20).size());
+        measure("getStudentsByDepartment", budgetNanos,
+                () -> service.findStudentsByDepartment(department(random)).size());
+        measure("getAllDepartments", budgetNanos, () -> service.getAvailableDepartments().size());
+        measure("getAverageGpa", budgetNanos, () -> (long) (service.getAverageGpa() * 1000));
+        measure("updateStudentGpa", budgetNanos,
+                () -> service.updateStudentGpa(1 + random.nextInt(maxId), random.nextInt(401) / 100.0) ? 1 : 0);
     }
     
-    public Student getStudentById(int id) {
-        Optional<Student> student = repository.getStudentById(id);
-        return student.orElse(null);
+    private static StudentStore populate(StudentStore repository, int size, Random random) {
+        int batchSize = 10_000;
+        for (int loaded = 0; loaded < size; loaded += batchSize) {
+            int count = Math.min(batchSize, size - loaded);
+            int id = repository.reserveIds(count);
+            List<Student> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                batch.add(randomStudent(random, id++));
+            }
+            repository.addStudents(batch);
+        }
+        return repository;
     }
     
-    public List<Student> findStudentsByDepartment(String department) {
-        return repository.getStudentsByDepartment(department);
+    private static void compareMemory(String name, StudentStore repository, int size) {
+        long before = usedHeap();
+        populate(repository, size, new Random(42));
+        long after = usedHeap();
+        System.out.printf("  %-28s %,10.1f MB %,8.1f bytes/student%n",
+                name, (after - before) / 1e6, (double) (after - before) / size);
+        sink += repository.getTotalStudents();
     }
     
-    public List<Student> searchStudents(String searchTerm) {
-        return repository.searchStudentsByName(searchTerm);
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
     }
     
-    public boolean updateStudent(int id, String firstName, String lastName, 
-                               String email, String phone, String department, double gpa) {
-        if (!repository.studentExists(id)) {
-            return false;
+    private static Student randomStudent(Random random, int id) {
+        String first = FIRST_NAMES[skewed(random, FIRST_NAMES.length)];
+        String last = LAST_NAMES[skewed(random, LAST_NAMES.length)];
+        Student student = new Student(id, first, last,
+                first.toLowerCase(Locale.ROOT) + "." + last.toLowerCase(Locale.ROOT) + id + "@example.edu",
+                String.format("555-%04d", random.nextInt(10_000)), department(random));
+        student.setGpa(Math.min(4.0, Math.max(0.0, 3.0 + random.nextGaussian() * 0.5)));
+        return student;
+    }
+    
+    private static String department(Random random) {
+        return DEPARTMENTS[skewed(random, DEPARTMENTS.length)];
+    }
+    
+    // Roughly Zipfian: low indexes are drawn far more often, like real name and major frequencies
+    private static int skewed(Random random, int bound) {
+        return (int) (bound * Math.pow(random.nextDouble(), 2.5));
+    }
+    
+    private interface Operation {
+        long run();
+    }
+    
+    private static void measure(String name, long budgetNanos, Operation operation) {
+        // Warm up for a third of the budget so the JIT has compiled the path
+        long warmupEnd = System.nanoTime() + budgetNanos / 3;
+        while (System.nanoTime() < warmupEnd) {
+            sink += operation.run();
         }
         
-        validateStudentData(firstName, lastName, email, phone, department);
-        
-        Student existingStudent = repository.getStudentById(id).orElse(null);
-        if (existingStudent != null) {
-            Student updatedStudent = new Student(id, firstName, lastName, email, phone, department);
-            updatedStudent.setGpa(gpa);
-            updatedStudent.setEnrollmentDate(existingStudent.getEnrollmentDate());
-            return repository.updateStudent(id, updatedStudent);
+        // Allocation per op in the style of JMH's GC profiler: bytes this
+        // thread allocated across the timed loop, over the op count
+        long allocatedBefore = allocatedBytes();
+        long operations = 0;
+        long start = System.nanoTime();
+        long end = start + budgetNanos;
+        long now = start;
+        while (now < end) {
+            for (int i = 0; i < 64; i++) {
+                sink += operation.run();
+            }
+            operations += 64;
+            now = System.nanoTime();
         }
-        return false;
+        long allocatedAfter = allocatedBytes();
+        double nanosPerOp = (double) (now - start) / operations;
+        String bytesPerOp = allocatedBefore < 0 || allocatedAfter < 0 ? "n/a"
+                : String.format("%,.0f", (double) (allocatedAfter - allocatedBefore) / operations);
+        System.out.printf("%-34s %,14.0f ops/s %,12.0f ns/op %12s B/op%n", name, 1e9 / nanosPerOp, nanosPerOp,
+                bytesPerOp);
     }
     
-    public boolean updateStudentGpa(int id, double gpa) {
-        Optional<Student> studentOpt = repository.getStudentById(id);
-        if (studentOpt.isPresent()) {
-            Student student = studentOpt.get();
-            student.setGpa(gpa);
-            return repository.updateStudent(id, student);
+    // -1 where the JVM can't count per-thread allocation
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof ThreadMXBean)) {
+            return -1;
         }
-        return false;
+        ThreadMXBean counting = (ThreadMXBean) threads;
+        if (!counting.isThreadAllocatedMemorySupported() || !counting.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
     }
+}
+
+/**
+ * Self-checking stress tests for the concurrent write paths, in the same
+ * no-dependency style as StudentBenchmark. Each check throws
+ * IllegalStateException on the first violation, so a failed run exits
+ * non-zero.
+ *
+ * Run with: java -cp . StudentStressTest [seconds per thread count]
+ * Writers create students and increment counters held in a few hot
+ * students through the atomic read-modify-write updateStudent, at 1, 2,
+ * 4, ... threads up to the core count. Every run then checks that no ID
+ * was handed out twice and no increment was lost, and prints its ops/s.
+ * It then runs random write sequences against each in-memory backend and
+ * compares the running GPA and department aggregates with a full
+ * recompute over getAllStudents(). Last, writers update and delete
+ * students in a durable repository while it checkpoints, and a copy of
+ * its directory, taken without closing it, must reopen with every
+ * acknowledged write. Then queued AsyncStudentService writes that pass an
+ * email between students must end as they would one by one.
+ */
+class StudentStressTest {
+    private static final int COUNTERS = 64;
     
-    public boolean deleteStudent(int id) {
-        return repository.deleteStudent(id);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2.0;
+        stressConcurrentWrites((long) (seconds * 1e9));
+        checkAggregates("StudentRepository", StudentRepository::empty);
+        checkAggregates("ColumnarStudentRepository", ColumnarStudentRepository::new);
+        checkCheckpointDurability(200_000, 4, 5);
+        checkAsyncEmailOrder(2000);
+        System.out.println("All checks passed");
     }
     
-    public int getTotalStudentCount() {
-        return repository.getTotalStudents();
+    private static void stressConcurrentWrites(long budgetNanos) throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+        
+        double baseline = 0;
+        System.out.printf("%-8s %14s %10s%n", "threads", "ops/s", "speedup");
+        for (int threads : threadCounts) {
+            double opsPerSecond = runWriters(threads, budgetNanos);
+            if (baseline == 0) {
+                baseline = opsPerSecond;
+            }
+            System.out.printf("%-8d %,14.0f %9.2fx%n", threads, opsPerSecond, opsPerSecond / baseline);
+        }
     }
     
-    public List<String> getAvailableDepartments() {
-        return repository.getAllDepartments();
+    // Half the operations create a student, half increment a random
+    // counter; returns the combined rate after checking the end state
+    private static double runWriters(int threads, long budgetNanos) throws InterruptedException {
+        StudentRepository repository = StudentRepository.empty();
+        StudentService service = new StudentService(repository);
+        int[] counterIds = new int[COUNTERS];
+        for (int i = 0; i < COUNTERS; i++) {
+            counterIds[i] = service.createStudent("Counter", "C" + i, "counter" + i + "@stress.test", "0",
+                    "Stress").getStudentId();
+        }
+        
+        List<List<Integer>> createdIds = new ArrayList<>();
+        long[][] increments = new long[threads][COUNTERS];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            List<Integer> created = new ArrayList<>();
+            createdIds.add(created);
+            long[] mine = increments[t];
+            int worker = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(worker);
+                try {
+                    start.await();
+                    long end = System.nanoTime() + budgetNanos;
+                    for (long op = 0; (op & 255) != 0 || System.nanoTime() < end; op++) {
+                        if ((op & 1) == 0) {
+                            created.add(service.createStudent("Stress", "W" + worker, "w" + worker + "." + op
+                                    + "@stress.test", "", "Stress").getStudentId());
+                        } else {
+                            int counter = random.nextInt(COUNTERS);
+                            boolean updated = repository.updateStudent(counterIds[counter], existing -> {
+                                Student incremented = new Student(existing);
+                                incremented.setPhoneNumber(String.valueOf(Long.parseLong(existing.getPhoneNumber()) + 1));
+                                return incremented;
+                            });
+                            check(updated, "Counter student " + counterIds[counter] + " disappeared");
+                            mine[counter]++;
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "stress-writer-" + t);
+            workers.add(thread);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (failure.get() != null) {
+            throw new IllegalStateException("Stress writer failed", failure.get());
+        }
+        
+        Set<Integer> unique = new HashSet<>();
+        long creates = 0;
+        for (List<Integer> created : createdIds) {
+            for (int id : created) {
+                check(unique.add(id), "Student ID " + id + " was handed out twice");
+                check(id != 0 && repository.studentExists(id), "Created student " + id + " is missing");
+            }
+            creates += created.size();
+        }
+        for (int id : counterIds) {
+            check(!unique.contains(id), "Student ID " + id + " was handed out twice");
+        }
+        check(repository.getTotalStudents() == COUNTERS + creates,
+                "Expected " + (COUNTERS + creates) + " students, found " + repository.getTotalStudents());
+        long updates = 0;
+        for (int i = 0; i < COUNTERS; i++) {
+            long expected = 0;
+            for (long[] mine : increments) {
+                expected += mine[i];
+            }
+            long actual = Long.parseLong(repository.getStudentById(counterIds[i]).get().getPhoneNumber());
+            check(actual == expected, "Counter " + i + " is " + actual + " after " + expected + " increments");
+            updates += expected;
+        }
+        return (creates + updates) * 1e9 / elapsed;
     }
     
-    public double getAverageGpa() {
-        List<Student> students = repository.getAllStudents();
-        return students.stream()
-                .mapToDouble(Student::getGpa)
-                .average()
-                .orElse(0.0);
+    // Random creates, updates, GPA changes and deletes, single and batched,
+    // with the aggregates compared against a recompute after every round
+    private static void checkAggregates(String name, Supplier<StudentStore> backend) {
+        String[] departments = {"Physics", "physics", "Art", "History", "Music"};
+        Random random = new Random(7);
+        int sequences = 20;
+        int rounds = 50;
+        for (int sequence = 0; sequence < sequences; sequence++) {
+            StudentService service = new StudentService(backend.get());
+            List<Integer> ids = new ArrayList<>();
+            for (int round = 0; round < rounds; round++) {
+                for (int op = 0; op < 40; op++) {
+                    int pick = random.nextInt(10);
+                    String department = departments[random.nextInt(departments.length)];
+                    double gpa = random.nextInt(401) / 100.0;
+                    if (pick < 4 || ids.isEmpty()) {
+                        Student created = service.createStudent("Agg", "S" + op, "agg" + sequence + "." + round + "."
+                                + op + "@stress.test", "", department);
+                        service.updateStudentGpa(created.getStudentId(), gpa);
+                        ids.add(created.getStudentId());
+                        continue;
+                    }
+                    int id = ids.get(random.nextInt(ids.size()));
+                    Student existing = service.getStudentById(id);
+                    if (pick < 6 && existing != null) {
+                        service.updateStudent(id, existing.getFirstName(), existing.getLastName(), existing.getEmail(),
+                                existing.getPhoneNumber(), department, gpa);
+                    } else if (pick < 8) {
+                        service.updateStudentGpa(id, gpa);
+                    } else if (pick < 9) {
+                        service.deleteStudent(id);
+                    } else {
+                        Map<Integer, Double> gpas = new HashMap<>();
+                        List<Integer> deletes = new ArrayList<>();
+                        for (int i = 0; i < 5; i++) {
+                            gpas.put(ids.get(random.nextInt(ids.size())), random.nextInt(401) / 100.0);
+                            deletes.add(ids.get(random.nextInt(ids.size())));
+                        }
+                        service.updateGpas(gpas);
+                        service.deleteStudents(deletes);
+                    }
+                }
+                compareAggregates(name, service, departments);
+            }
+        }
+        System.out.printf("%s: aggregates match a full recompute after %,d rounds%n", name, sequences * rounds);
     }
     
-    private void validateStudentData(String firstName, String lastName, String email, 
-                                   String phone, String department) {
-        if (firstName == null || firstName.trim().isEmpty()) {
-            throw new IllegalArgumentException("First name cannot be empty");
+    private static void compareAggregates(String name, StudentService service, String[] departments) {
+        List<Student> students = service.getAllStudents();
+        double sum = 0;
+        double min = students.isEmpty() ? 0.0 : Double.MAX_VALUE;
+        double max = students.isEmpty() ? 0.0 : -Double.MAX_VALUE;
+        Map<String, Integer> sizes = new HashMap<>();
+        Map<String, Double> sums = new HashMap<>();
+        for (Student student : students) {
+            sum += student.getGpa();
+            min = Math.min(min, student.getGpa());
+            max = Math.max(max, student.getGpa());
+            String key = student.getDepartment().toLowerCase(Locale.ROOT);
+            sizes.merge(key, 1, Integer::sum);
+            sums.merge(key, student.getGpa(), Double::sum);
         }
-        if (lastName == null || lastName.trim().isEmpty()) {
-            throw new IllegalArgumentException("Last name cannot be empty");
+        check(service.getTotalStudentCount() == students.size(), name + ": count "
+                + service.getTotalStudentCount() + " but " + students.size() + " students");
+        checkClose(service.getAverageGpa(), students.isEmpty() ? 0.0 : sum / students.size(), name + ": average GPA");
+        check(service.getLowestGpa() == min, name + ": min GPA " + service.getLowestGpa() + ", expected " + min);
+        check(service.getHighestGpa() == max, name + ": max GPA " + service.getHighestGpa() + ", expected " + max);
+        for (String department : departments) {
+            String key = department.toLowerCase(Locale.ROOT);
+            int size = sizes.getOrDefault(key, 0);
+            check(service.countStudentsByDepartment(department) == size, name + ": " + department + " size "
+                    + service.countStudentsByDepartment(department) + ", expected " + size);
+            checkClose(service.getDepartmentAverageGpa(department), size == 0 ? 0.0 : sums.get(key) / size,
+                    name + ": " + department + " average GPA");
         }
-        if (email == null || !email.contains("@")) {
-            throw new IllegalArgumentException("Valid email is required");
+    }
+    
+    private static void checkCheckpointDurability(int size, int writers, int checkpoints)
+            throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("student-stress");
+        Path copy = Files.createTempDirectory("student-stress-copy");
+        StudentRepository repository = new StudentRepository(directory, false);
+        List<Student> students = new ArrayList<>(size);
+        int firstId = repository.reserveIds(size);
+        for (int i = 0; i < size; i++) {
+            students.add(new Student(firstId + i, "Durable", "D" + i, "durable" + i + "@stress.test", "", "Stress"));
         }
-        if (department == null || department.trim().isEmpty()) {
-            throw new IllegalArgumentException("Department cannot be empty");
+        repository.addStudents(students);
+        
+        // Writer w owns the IDs congruent to w, so its last acknowledged
+        // write per ID is the expected final state (null for deleted)
+        List<Map<Integer, Double>> expected = new ArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            Map<Integer, Double> acknowledged = new HashMap<>();
+            expected.add(acknowledged);
+            int writer = w;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(writer);
+                try {
+                    while (!stop.get()) {
+                        int id = firstId + writer + writers * random.nextInt(size / writers);
+                        if (acknowledged.containsKey(id) && acknowledged.get(id) == null) {
+                            continue;
+                        }
+                        if (random.nextInt(20) == 0) {
+                            repository.deleteStudent(id);
+                            acknowledged.put(id, null);
+                        } else {
+                            double gpa = random.nextInt(401) / 100.0;
+                            repository.updateStudent(id, existing -> {
+                                Student updated = new Student(existing);
+                                updated.setGpa(gpa);
+                                return updated;
+                            });
+                            acknowledged.put(id, gpa);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "checkpoint-writer-" + w);
+            threads.add(thread);
+            thread.start();
+        }
+        for (int i = 0; i < checkpoints; i++) {
+            Thread.sleep(200);
+            repository.checkpoint();
+        }
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Checkpoint writer failed", failure.get());
+        }
+        
+        // Every write was acknowledged, so it is on disk: copy the files as
+        // a crash would leave them and recover from the copy
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        StudentRepository reopened = new StudentRepository(copy, false);
+        int writes = 0;
+        int lost = 0;
+        for (Map<Integer, Double> acknowledged : expected) {
+            for (Map.Entry<Integer, Double> entry : acknowledged.entrySet()) {
+                Optional<Student> student = reopened.getStudentById(entry.getKey());
+                boolean kept = entry.getValue() == null ? !student.isPresent()
+                        : student.isPresent() && student.get().getGpa() == entry.getValue();
+                writes++;
+                if (!kept) {
+                    lost++;
+                }
+            }
+        }
+        reopened.close();
+        repository.close();
+        for (Path root : new Path[] {directory, copy}) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(root)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(root);
+        }
+        check(lost == 0, lost + " of " + writes + " acknowledged writes were lost across " + checkpoints
+                + " concurrent checkpoints");
+        System.out.printf("Checkpoints: %,d acknowledged writes across %d concurrent checkpoints all recovered%n",
+                writes, checkpoints);
+    }
+    
+    // Student 1 holds x@ and student 66 holds y@. Queued in this order,
+    // moving 66 to x@ must fail even though 1 gives x@ up right after;
+    // 1 sorts first in a batched update, so a run that held both would
+    // apply them the other way round
+    private static void checkAsyncEmailOrder(int attempts) {
+        int reordered = 0;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            StudentRepository repository = StudentRepository.empty();
+            repository.addStudent(new Student(1, "First", "One", "x@stress.test", "", "Stress"));
+            repository.addStudent(new Student(66, "Second", "Two", "y@stress.test", "", "Stress"));
+            StudentService service = new StudentService(repository);
+            AsyncStudentService async = service.async();
+            CompletableFuture<Boolean> takeX = async.updateStudent(66, "Second", "Two", "x@stress.test", "",
+                    "Stress", 3.0);
+            CompletableFuture<Boolean> giveUpX = async.updateStudent(1, "First", "One", "z@stress.test", "",
+                    "Stress", 3.0);
+            boolean rejected;
+            try {
+                takeX.join();
+                rejected = false;
+            } catch (CompletionException e) {
+                rejected = e.getCause() instanceof IllegalArgumentException;
+            }
+            if (!rejected || !giveUpX.join()) {
+                reordered++;
+            }
+            service.shutdown();
+        }
+        check(reordered == 0, "Queued email hand-off applied out of order in " + reordered + " of " + attempts
+                + " attempts");
+        System.out.printf("Async writes: email hand-off kept queue order in %,d attempts%n", attempts);
+    }
+    
+    // Running sums pick up rounding error that a fresh sum does not
+    private static void checkClose(double actual, double expected, String what) {
+        check(Math.abs(actual - expected) < 1e-9, what + " is " + actual + ", expected " + expected);
+    }
+    
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
         }
     }
 }
@@ -258,7 +8355,11 @@ public class StudentManagementSystem {
     private Scanner scanner;
     
     public StudentManagementSystem() {
-        this.studentService = new StudentService();
+        this(new StudentService());
+    }
+    
+    public StudentManagementSystem(StudentService studentService) {
+        this.studentService = studentService;
         this.scanner = new Scanner(System.in);
     }
     
@@ -300,8 +8401,21 @@ public class StudentManagementSystem {
                 case 9:
                     updateGpaFlow();
                     break;
+                case 10:
+                    importStudentsFlow();
+                    break;
+                case 11:
+                    showMetrics();
+                    break;
+                case 12:
+                    gpaReportsFlow();
+                    break;
+                case 13:
+                    exportStudentsFlow();
+                    break;
                 case 0:
                     running = false;
+                    studentService.shutdown();
                     System.out.println("Thank you for using Student Management System!");
                     break;
                 default:
@@ -328,6 +8442,10 @@ public class StudentManagementSystem {
         System.out.println("7. View Statistics");
         System.out.println("8. Filter by Department");
         System.out.println("9. Update Student GPA");
+        System.out.println("10. Import Students from File");
+        System.out.println("11. View Metrics");
+        System.out.println("12. GPA Reports");
+        System.out.println("13. Export Students to File");
         System.out.println("0. Exit Application");
         System.out.println("=".repeat(50));
     }
@@ -362,28 +8480,21 @@ public class StudentManagementSystem {
     
     private void viewAllStudents() {
         System.out.println("\n=== ALL STUDENTS ===");
-        List<Student> students = studentService.getAllStudents();
+        Iterator<Student> students = studentService.iterateStudents();
         
-        if (students.isEmpty()) {
+        if (!students.hasNext()) {
             System.out.println("No students found in the system.");
             return;
         }
         
-        System.out.printf("%-5s %-15s %-15s %-25s %-15s %-15s %-8s%n",
-                "ID", "First Name", "Last Name", "Email", "Phone", "Department", "GPA");
-        System.out.println("-".repeat(100));
-        
-        for (Student student : students) {
-            System.out.printf("%-5d %-15s %-15s %-25s %-15s %-15s %-8.2f%n",
-                    student.getStudentId(),
-                    student.getFirstName(),
-                    student.getLastName(),
-                    student.getEmail(),
-                    student.getPhoneNumber(),
-                    student.getDepartment(),
-                    student.getGpa());
+        int total;
+        try {
+            total = StudentTableRenderer.toConsole().table(students);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
         }
-        System.out.println("\nTotal Students: " + students.size());
+        System.out.println("\nTotal Students: " + total);
     }
     
     private void viewStudentById() {
@@ -409,9 +8520,7 @@ public class StudentManagementSystem {
             System.out.println("No students found matching: " + searchTerm);
         } else {
             System.out.println("\nSearch Results (" + results.size() + " found):");
-            for (Student student : results) {
-                System.out.println(student);
-            }
+            printTable(results);
         }
     }
     
@@ -497,12 +8606,35 @@ public class StudentManagementSystem {
         
         System.out.println("Total Students: " + totalStudents);
         System.out.printf("Average GPA: %.2f%n", averageGpa);
+        System.out.printf("Highest GPA: %.2f%n", studentService.getHighestGpa());
+        System.out.printf("Lowest GPA: %.2f%n", studentService.getLowestGpa());
         System.out.println("Departments: " + departments.size());
         
-        System.out.println("\nDepartment List:");
-        for (String dept : departments) {
-            int count = studentService.findStudentsByDepartment(dept).size();
-            System.out.printf("  %s: %d students%n", dept, count);
+        StudentReportEngine.Report report = studentService.generateReport();
+        System.out.printf("GPA Percentiles: P25 %.2f, median %.2f, P75 %.2f, P90 %.2f, P99 %.2f%n",
+                report.gpaPercentile(25), report.gpaPercentile(50), report.gpaPercentile(75),
+                report.gpaPercentile(90), report.gpaPercentile(99));
+        
+        System.out.println("\nDepartment List (students per GPA band):");
+        System.out.printf("  %-20s %8s %5s", "Department", "Students", "Avg");
+        for (int bin = 0; bin < StudentReportEngine.HISTOGRAM_BINS; bin++) {
+            System.out.printf(" %6.1f+", bin * StudentReportEngine.HISTOGRAM_BIN_WIDTH);
+        }
+        System.out.println();
+        for (StudentReportEngine.DepartmentReport department : report.departments) {
+            System.out.printf("  %-20s %8d %5.2f", department.name, department.students, department.averageGpa);
+            for (long count : department.histogram) {
+                System.out.printf(" %7d", count);
+            }
+            System.out.println();
+        }
+        
+        System.out.println("\nEnrollments by Month:");
+        for (Map.Entry<YearMonth, Long> month : report.enrollmentsByMonth.entrySet()) {
+            System.out.printf("  %s: %d%n", month.getKey(), month.getValue());
+        }
+        if (report.withoutEnrollmentDate > 0) {
+            System.out.println("  (no date): " + report.withoutEnrollmentDate);
         }
     }
     
@@ -523,9 +8655,7 @@ public class StudentManagementSystem {
             System.out.println("No students found in department: " + department);
         } else {
             System.out.println("\nStudents in " + department + " Department:");
-            for (Student student : students) {
-                System.out.println(student);
-            }
+            printTable(students);
         }
     }
     
@@ -558,6 +8688,109 @@ public class StudentManagementSystem {
         }
     }
     
+    private void printTable(List<Student> students) {
+        try {
+            StudentTableRenderer.toConsole().table(students.iterator());
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+    
+    private void exportStudentsFlow() {
+        System.out.println("\n=== EXPORT STUDENTS ===");
+        System.out.print("File path (.csv or .tsv): ");
+        String path = scanner.nextLine().trim();
+        
+        try {
+            long start = System.nanoTime();
+            long rows = studentService.exportStudents(Paths.get(path));
+            System.out.printf("Exported %d students in %.2f s%n", rows, (System.nanoTime() - start) / 1e9);
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+    
+    private void importStudentsFlow() {
+        System.out.println("\n=== IMPORT STUDENTS ===");
+        System.out.print("File path (.csv, .json or .jsonl): ");
+        String path = scanner.nextLine().trim();
+        
+        try {
+            StudentImporter.ImportResult result = studentService.importStudents(Paths.get(path));
+            System.out.println("Imported: " + result.imported);
+            System.out.println("Rejected: " + result.failed);
+            System.out.printf("Throughput: %.0f rows/second%n", result.rowsPerSecond());
+            int shown = Math.min(10, result.errors.size());
+            for (int i = 0; i < shown; i++) {
+                System.out.println("  " + result.errors.get(i));
+            }
+            if (result.failed > shown) {
+                System.out.println("  ... and " + (result.failed - shown) + " more");
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+    
+    private void gpaReportsFlow() {
+        System.out.println("\n=== GPA REPORTS ===");
+        System.out.println("1. Dean's List (GPA 3.5 and above)");
+        System.out.println("2. Academic Probation (GPA below 2.0)");
+        System.out.println("3. Top Students");
+        System.out.println("4. Students by GPA Range");
+        int choice = getIntInput("Select report: ");
+        
+        List<Student> students;
+        try {
+            switch (choice) {
+                case 1:
+                    students = studentService.getDeansList();
+                    break;
+                case 2:
+                    students = studentService.getProbationList();
+                    break;
+                case 3:
+                    students = studentService.getTopStudents(getIntInput("How many: "));
+                    break;
+                case 4:
+                    double min = getDoubleInput("Minimum GPA: ");
+                    double max = getDoubleInput("Maximum GPA: ");
+                    students = studentService.findStudentsByGpaRange(min, max);
+                    break;
+                default:
+                    System.out.println("Invalid report choice.");
+                    return;
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        
+        if (students.isEmpty()) {
+            System.out.println("No students match this report.");
+            return;
+        }
+        for (Student student : students) {
+            System.out.printf("  %-6d %-30s %-20s %.2f%n", student.getStudentId(), student.getFullName(),
+                    student.getDepartment(), student.getGpa());
+        }
+        System.out.println("Total: " + students.size());
+    }
+    
+    private void showMetrics() {
+        System.out.println("\n=== SERVICE METRICS ===");
+        System.out.printf("%-8s %10s %9s %10s %10s %10s %10s %10s%n",
+                "Op", "Calls", "Failed", "Mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "Max(us)");
+        System.out.println("-".repeat(85));
+        for (Map.Entry<ServiceMetrics.Operation, ServiceMetrics.LatencySnapshot> entry
+                : studentService.getMetricsSnapshot().entrySet()) {
+            ServiceMetrics.LatencySnapshot s = entry.getValue();
+            System.out.printf("%-8s %10d %9d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    entry.getKey(), s.count, s.failures, s.meanNanos / 1e3, s.p50Nanos / 1e3,
+                    s.p99Nanos / 1e3, s.p999Nanos / 1e3, s.maxNanos / 1e3);
+        }
+    }
+    
     private void displayStudentDetails(Student student) {
         System.out.println("  ID: " + student.getStudentId());
         System.out.println("  Name: " + student.getFullName());
@@ -607,8 +8840,64 @@ public class StudentManagementSystem {
         }
     }
     
-    public static void main(String[] args) {
-        StudentManagementSystem app = new StudentManagementSystem();
+    private static void runBatch(StudentService service, String batchFile) throws IOException {
+        StudentBatchRunner.Summary summary;
+        try (BufferedReader commands = batchFile.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+                : Files.newBufferedReader(Paths.get(batchFile), StandardCharsets.UTF_8)) {
+            Writer results = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            summary = service.runBatch(commands, results);
+        } finally {
+            service.shutdown();
+        }
+        System.err.printf("%d commands, %d failed, in %.1f ms (%.0f commands/s)%n", summary.commands,
+                summary.failed, summary.elapsedNanos / 1e6, summary.commandsPerSecond());
+    }
+    
+    /**
+     * Usage: StudentManagementSystem [data-directory] [--http port]
+     * [--shards n] [--batch file]. With --http the JSON API is served
+     * until the process is stopped instead of running the console menu.
+     * With --shards the students are split across n ShardServer processes
+     * on this machine, stored under data-directory/shard-0 and so on. With
+     * --batch the commands in the file ("-" for stdin) are run headless,
+     * with results on stdout and a summary on stderr.
+     */
+    public static void main(String[] args) throws IOException {
+        String directory = "student-data";
+        int httpPort = -1;
+        int shards = 0;
+        String batchFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--http") && i + 1 < args.length) {
+                httpPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--shards") && i + 1 < args.length) {
+                shards = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--batch") && i + 1 < args.length) {
+                batchFile = args[++i];
+            } else {
+                directory = args[i];
+            }
+        }
+        StudentStore store = shards > 0
+                ? ShardedStudentStore.launchLocal(shards, Paths.get(directory))
+                : new StudentRepository(Paths.get(directory));
+        StudentService service = new StudentService(store);
+        if (batchFile != null) {
+            runBatch(service, batchFile);
+            return;
+        }
+        if (httpPort >= 0) {
+            StudentHttpServer server = new StudentHttpServer(service, new InetSocketAddress(httpPort));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                service.shutdown();
+            }));
+            server.start();
+            System.out.println("Serving the student API on port " + server.getPort());
+            return;
+        }
+        StudentManagementSystem app = new StudentManagementSystem(service);
         app.startApplication();
     }
 }